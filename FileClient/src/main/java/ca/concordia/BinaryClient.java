@@ -0,0 +1,209 @@
+package ca.concordia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Speaks the server's length-prefixed binary frames; opcodes and layout mirror the server's BinaryProtocol
+public class BinaryClient implements AutoCloseable {
+
+    private static final byte OP_EXIT = 0;
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_WRITE = 2;
+    private static final byte OP_READ = 3;
+    private static final byte OP_DELETE = 4;
+    private static final byte OP_LIST = 5;
+    private static final byte OP_STATS = 6;
+    private static final byte OP_SYNC = 7;
+
+    private static final byte STATUS_OK = 0;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private byte lastStatus;
+
+    public BinaryClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        // Negotiate: the server only switches after answering the text handshake
+        out.write("BINARY\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String reply = readLine();
+        if (!"OK: binary".equals(reply)) {
+            socket.close();
+            throw new IOException("Server refused binary framing: " + reply);
+        }
+    }
+
+    public byte[] call(byte opcode, String filename, byte[] payload) throws IOException {
+        send(opcode, filename, payload);
+        out.flush();
+        return receive();
+    }
+
+    // Queue a frame without flushing, for pipelining; pair every send with a receive, in order
+    public void send(byte opcode, String filename, byte[] payload) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(opcode);
+        out.writeShort(name.length);
+        out.writeInt(payload.length);
+        out.write(name);
+        out.write(payload);
+    }
+
+    // Send a local file as a WRITE payload straight from disk, without loading it into memory
+    public byte[] upload(String filename, Path source) throws IOException {
+        long size = Files.size(source);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(source + " is too large to upload");
+        }
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(OP_WRITE);
+        out.writeShort(name.length);
+        out.writeInt((int) size);
+        out.write(name);
+        Files.copy(source, out);
+        out.flush();
+        return receive();
+    }
+
+    // Save a file's READ payload straight to target; returns the byte count, or throws with the server's error
+    public long download(String filename, Path target) throws IOException {
+        send(OP_READ, filename, new byte[0]);
+        out.flush();
+
+        lastStatus = in.readByte();
+        int length = in.readInt();
+        if (lastStatus != STATUS_OK) {
+            byte[] message = new byte[length];
+            in.readFully(message);
+            throw new IOException(new String(message, StandardCharsets.UTF_8));
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream file = Files.newOutputStream(target)) {
+            int remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Connection closed during download");
+                }
+                file.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return length;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public byte[] receive() throws IOException {
+        lastStatus = in.readByte();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public boolean lastOk() {
+        return lastStatus == STATUS_OK;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            send(OP_EXIT, "", new byte[0]);
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    // Interactive session: the usual commands, plus UPLOAD/DOWNLOAD to stream local files as raw bytes
+    public static void interactive(String host, int port) {
+        try (BinaryClient client = new BinaryClient(host, port);
+             BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            System.out.println("Connected to the server at " + host + ":" + port + " (binary frames)");
+
+            String userInput;
+            while ((userInput = console.readLine()) != null && !userInput.isEmpty()
+                    && !userInput.equalsIgnoreCase("exit") && !userInput.equalsIgnoreCase("quit")) {
+                String[] parts = userInput.split(" ", 3);
+                String command = parts[0].toUpperCase();
+                String filename = parts.length > 1 ? parts[1] : "";
+                String argument = parts.length > 2 ? parts[2] : "";
+
+                byte[] response;
+                switch (command) {
+                    case "CREATE":
+                        response = client.call(OP_CREATE, filename, new byte[0]);
+                        break;
+                    case "WRITE":
+                        response = client.call(OP_WRITE, filename, argument.getBytes(StandardCharsets.UTF_8));
+                        break;
+                    case "UPLOAD":
+                        response = client.upload(filename, Paths.get(argument));
+                        break;
+                    case "READ":
+                        response = client.call(OP_READ, filename, new byte[0]);
+                        break;
+                    case "DOWNLOAD":
+                        try {
+                            long saved = client.download(filename, Paths.get(argument));
+                            response = ("Saved " + saved + " bytes to " + argument).getBytes(StandardCharsets.UTF_8);
+                        } catch (IOException e) {
+                            response = e.getMessage().getBytes(StandardCharsets.UTF_8);
+                        }
+                        break;
+                    case "DELETE":
+                        response = client.call(OP_DELETE, filename, new byte[0]);
+                        break;
+                    case "LIST":
+                        response = client.call(OP_LIST, "", new byte[0]);
+                        break;
+                    case "STATS":
+                        response = client.call(OP_STATS, "", new byte[0]);
+                        break;
+                    case "SYNC":
+                        response = client.call(OP_SYNC, "", new byte[0]);
+                        break;
+                    default:
+                        System.out.println("Unknown command: " + command);
+                        continue;
+                }
+
+                String text = new String(response, StandardCharsets.UTF_8);
+                System.out.println("Response from server: " + (client.lastOk() ? text : "ERROR: " + text));
+            }
+            System.out.println("Connection closed.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
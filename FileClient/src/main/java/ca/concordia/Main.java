@@ -1,16 +1,35 @@
 package ca.concordia;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 // Press Shift twice to open the Search Everywhere dialog and type `show whitespaces`,
 // then press Enter. You can now see whitespace characters in your code.
 public class Main {
+
+    private static final int MAX_BATCH = 1024; // same limit as the server's CommandProcessor.MAX_BATCH
+
     public static void main(String[] args) {
+        // --pipeline [file]: send every command from the file (or stdin) without waiting for replies
+        if (args.length > 0 && args[0].equals("--pipeline")) {
+            pipeline(args.length > 1 ? args[1] : null);
+            return;
+        }
+        // --binary: same commands over length-prefixed frames, plus UPLOAD/DOWNLOAD of local files
+        if (args.length > 0 && args[0].equals("--binary")) {
+            BinaryClient.interactive("localhost", 12345);
+            return;
+        }
+
         //Socket CLient
         System.out.println("Hello and welcome!");
         Scanner scanner = new Scanner(System.in);
@@ -26,11 +45,29 @@ public class Main {
                     PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
             ) {
                 while (userInput != null && !userInput.isEmpty() && !userInput.equalsIgnoreCase("exit") && !userInput.equalsIgnoreCase("quit")) {
+                    // BATCH n: the next n lines are its operations, answered together
+                    int batchLength = batchLength(userInput);
+                    if (batchLength >= 0 && !acceptsBatch(batchLength)) {
+                        System.out.println("Not sent: a batch takes 1 to " + MAX_BATCH + " operations");
+                        userInput = scanner.nextLine();
+                        continue;
+                    }
+
                     writer.println(userInput);
                     System.out.println("Message sent to the server: " + userInput);
+
+                    for (int i = 0; i < batchLength; i++) {
+                        writer.println(scanner.nextLine());
+                    }
+
                     //get response
                     String response = reader.readLine();
                     System.out.println("Response from server: " + response);
+                    if (batchLength > 0 && response != null && response.startsWith("OK: BATCH")) {
+                        for (int i = 0; i < batchLength; i++) {
+                            System.out.println("  " + reader.readLine());
+                        }
+                    }
 
                     userInput = scanner.nextLine(); // Read next line
                 }
@@ -49,4 +86,91 @@ public class Main {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    private static void pipeline(String commandFile) {
+        try (BufferedReader source = new BufferedReader(commandFile == null
+                ? new InputStreamReader(System.in) : new FileReader(commandFile))) {
+            List<String> commands = new ArrayList<>();
+            String line;
+            while ((line = source.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.trim().equalsIgnoreCase("exit")) {
+                    commands.add(line);
+                }
+            }
+
+            // The server would refuse it anyway, but then its operation lines could no longer be told apart
+            for (String command : commands) {
+                int batchLength = batchLength(command);
+                if (batchLength >= 0 && !acceptsBatch(batchLength)) {
+                    System.out.println("Not sent: " + command.trim() + ", a batch takes 1 to " + MAX_BATCH
+                            + " operations");
+                    return;
+                }
+            }
+
+            try (Socket clientSocket = new Socket("localhost", 12345)) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                PrintWriter writer = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(clientSocket.getOutputStream())));
+                long start = System.nanoTime();
+
+                // Send from another thread so a long batch cannot deadlock against unread responses
+                Thread sender = new Thread(() -> {
+                    for (String command : commands) {
+                        writer.println(command);
+                    }
+                    writer.println("exit");
+                    writer.flush();
+                });
+                sender.start();
+
+                int answered = 0;
+                for (int i = 0; i < commands.size(); i++) {
+                    String command = commands.get(i);
+                    String response = reader.readLine();
+                    if (response == null) {
+                        break;
+                    }
+                    answered++;
+                    System.out.println(command + " -> " + response);
+
+                    // A batch answers its operation lines after the header reply
+                    int batchLength = batchLength(command);
+                    if (batchLength > 0) {
+                        for (int j = 1; j <= batchLength && i + j < commands.size(); j++) {
+                            String result = response.startsWith("OK: BATCH") ? reader.readLine() : "(not run)";
+                            answered++;
+                            System.out.println("  " + commands.get(i + j) + " -> " + result);
+                        }
+                        i += batchLength;
+                    }
+                }
+                sender.join();
+
+                double elapsedMs = (System.nanoTime() - start) / 1_000_000.0;
+                System.out.printf("%d/%d commands answered in %.1f ms%n", answered, commands.size(), elapsedMs);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Operation count of a "BATCH n" line, or -1 for any other command; the count may be out of range,
+    // see acceptsBatch
+    private static int batchLength(String command) {
+        String[] parts = command.trim().split(" ");
+        if (parts.length != 2 || !parts[0].equalsIgnoreCase("BATCH")) {
+            return -1;
+        }
+        try {
+            return Math.max(Integer.parseInt(parts[1]), 0);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Same rule as the server's CommandProcessor.acceptsBatch
+    private static boolean acceptsBatch(int count) {
+        return count >= 1 && count <= MAX_BATCH;
+    }
+}
@@ -0,0 +1,82 @@
+package ca.concordia;
+
+import ca.concordia.filesystem.device.CachePolicy;
+import ca.concordia.filesystem.device.CachingBlockDevice;
+import ca.concordia.filesystem.device.MemoryBlockDevice;
+
+import java.util.Arrays;
+
+// Checks how many reads a cold multi-block read costs the device behind the block cache
+public class CachingBlockDeviceTest {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int BLOCK_COUNT = 1024;
+
+    private static int failures;
+
+    // Memory device that counts the readBlocks calls reaching it
+    private static class CountingDevice extends MemoryBlockDevice {
+        int reads;
+
+        CountingDevice() {
+            super(BLOCK_SIZE, BLOCK_COUNT);
+        }
+
+        @Override
+        public void readBlocks(int firstBlock, byte[] dst, int offset, int length) {
+            reads++;
+            super.readBlocks(firstBlock, dst, offset, length);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CountingDevice disk = new CountingDevice();
+        byte[] contents = new byte[BLOCK_SIZE * BLOCK_COUNT];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31 + i / BLOCK_SIZE);
+        }
+        disk.writeBlocks(0, contents, 0, contents.length);
+        CachingBlockDevice cache = new CachingBlockDevice(disk, 64, CachePolicy.LRU);
+
+        System.out.println("=== TEST 1: COLD READ OF 8 BLOCKS ===");
+        check(cache, disk, 0, 8 * BLOCK_SIZE, 1);
+
+        System.out.println("\n=== TEST 2: SAME READ AGAIN, ALL CACHED ===");
+        check(cache, disk, 0, 8 * BLOCK_SIZE, 0);
+
+        System.out.println("\n=== TEST 3: ONE DELEGATE READ PER RUN OF MISSING BLOCKS ===");
+        cache.discard(3);
+        check(cache, disk, 0, 16 * BLOCK_SIZE, 2); // block 3, then blocks 8 to 15
+
+        System.out.println("\n=== TEST 4: READ ENDING MID-BLOCK ===");
+        check(cache, disk, 20, 5 * BLOCK_SIZE + 100, 1);
+
+        System.out.println("\n=== TEST 5: LARGE READ BYPASSES THE CACHE ===");
+        check(cache, disk, 256, 256 * BLOCK_SIZE, 1);
+        check(cache, disk, 300, BLOCK_SIZE, 1); // was not cached by the large read
+
+        System.out.println("\n" + cache);
+        if (failures > 0) {
+            System.err.println("❌ " + failures + " CHECK(S) FAILED");
+            System.exit(1);
+        }
+        System.out.println("=== ALL TESTS COMPLETED ===");
+    }
+
+    private static void check(CachingBlockDevice cache, CountingDevice disk, int firstBlock, int length,
+                              int expectedReads) throws Exception {
+        byte[] expected = new byte[length];
+        disk.readBlocks(firstBlock, expected, 0, length);
+        disk.reads = 0;
+
+        byte[] data = new byte[length];
+        cache.readBlocks(firstBlock, data, 0, length);
+        boolean same = Arrays.equals(data, expected);
+        boolean ok = same && disk.reads == expectedReads;
+        System.out.println((ok ? "✅ " : "❌ ") + length + " bytes from block " + firstBlock + ": "
+                + disk.reads + " delegate read(s), expected " + expectedReads + (same ? "" : ", DATA MISMATCH"));
+        if (!ok) {
+            failures++;
+        }
+    }
+}
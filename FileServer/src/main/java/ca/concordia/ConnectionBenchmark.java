@@ -0,0 +1,190 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionBenchmark {
+
+    private static final int PORT = 12345; // FileServer.main always listens here
+    private static final int[] CONNECTIONS = {100, 500, 1000, 2000, 4000};
+    private static final int CLIENT_THREADS = 16;
+    private static final long DURATION_MS = 3000;
+
+    // Usage: ConnectionBenchmark [server modes...], defaults to THREAD and VIRTUAL
+    // Each mode runs a separate FileServer process, so virtual threads need a JVM that has them
+    public static void main(String[] args) throws Exception {
+        String[] modes = args.length > 0 ? args : new String[]{"THREAD", "VIRTUAL"};
+
+        System.out.println("=== CONNECTION BENCHMARK ===");
+        System.out.println("N connections held open, " + CLIENT_THREADS
+                + " client threads issuing READs across them for " + DURATION_MS + " ms\n");
+
+        for (String mode : modes) {
+            Process server = startServer(mode.toLowerCase());
+            try {
+                seed();
+                for (int connections : CONNECTIONS) {
+                    if (!run(mode.toUpperCase(), connections)) {
+                        break;
+                    }
+                }
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+            System.out.println();
+        }
+    }
+
+    private static Process startServer(String mode) throws Exception {
+        File dir = Files.createTempDirectory("connbench").toFile();
+        dir.deleteOnExit();
+        new File(dir, "disk.dat").deleteOnExit();
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        int feature = Runtime.version().feature();
+        if (feature == 19 || feature == 20) {
+            command.add("--enable-preview");
+        }
+        command.add("-Dserver.mode=" + mode);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("ca.concordia.server.FileServer");
+
+        Process process = new ProcessBuilder(command)
+                .directory(dir)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        // Wait for the listener to come up
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Socket probe = new Socket("localhost", PORT)) {
+                new PrintWriter(probe.getOutputStream(), true).println("exit");
+                return process;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !process.isAlive()) {
+                    process.destroy();
+                    throw new IllegalStateException("Server in mode " + mode + " did not start");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void seed() throws IOException {
+        try (Socket socket = new Socket("localhost", PORT)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("CREATE bench.txt");
+            in.readLine();
+            out.println("WRITE bench.txt hello from the connection benchmark");
+            in.readLine();
+            out.println("exit");
+        }
+    }
+
+    // Returns false once the server (or this machine) cannot hold the requested connections
+    private static boolean run(String mode, int connections) throws InterruptedException {
+        List<Socket> sockets = new ArrayList<>();
+        long openStart = System.nanoTime();
+        try {
+            for (int i = 0; i < connections; i++) {
+                sockets.add(new Socket("localhost", PORT));
+            }
+        } catch (IOException e) {
+            System.out.printf("%-8s %5d connections: only %d opened (%s)%n",
+                    mode, connections, sockets.size(), e.getMessage());
+            closeAll(sockets);
+            return false;
+        }
+        double openMs = (System.nanoTime() - openStart) / 1_000_000.0;
+
+        long[][] latencies = new long[CLIENT_THREADS][];
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(CLIENT_THREADS);
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < CLIENT_THREADS; t++) {
+            int thread = t;
+            new Thread(() -> {
+                // Each client thread cycles over its share of the connections, one request at a time
+                List<BufferedReader> readers = new ArrayList<>();
+                List<PrintWriter> writers = new ArrayList<>();
+                long[] samples = new long[1024];
+                int count = 0;
+                try {
+                    for (int i = thread; i < sockets.size(); i += CLIENT_THREADS) {
+                        Socket socket = sockets.get(i);
+                        readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+                        writers.add(new PrintWriter(socket.getOutputStream(), true));
+                    }
+                    start.await();
+                    int next = 0;
+                    while (System.currentTimeMillis() < deadline[0] && !writers.isEmpty()) {
+                        long begin = System.nanoTime();
+                        writers.get(next).println("READ bench.txt");
+                        if (readers.get(next).readLine() == null) {
+                            failures.incrementAndGet();
+                        }
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, count * 2);
+                        }
+                        samples[count++] = System.nanoTime() - begin;
+                        next = (next + 1) % writers.size();
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    latencies[thread] = Arrays.copyOf(samples, count);
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        deadline[0] = System.currentTimeMillis() + DURATION_MS;
+        start.countDown();
+        done.await();
+        closeAll(sockets);
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        if (all.length == 0) {
+            System.out.printf("%-8s %5d connections: no requests completed%n", mode, connections);
+            return false;
+        }
+        System.out.printf("%-8s %5d connections: open %7.1f ms  %,9.0f req/s  p50 %6.3f ms  p99 %6.3f ms"
+                        + "  failures %d%n",
+                mode, connections, openMs, all.length * 1000.0 / DURATION_MS,
+                percentile(all, 0.50), percentile(all, 0.99), failures.get());
+        return failures.get() == 0;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    private static void closeAll(List<Socket> sockets) {
+        for (Socket socket : sockets) {
+            try {
+                new PrintWriter(socket.getOutputStream(), true).println("exit");
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DurabilityBenchmark {
+
+    private static final int PORT = 12345; // FileServer.main always listens here
+    private static final int[] CLIENTS = {1, 8, 32};
+    private static final long DURATION_MS = 3000;
+    private static final Pattern FSYNCS = Pattern.compile("fsyncs=(\\d+)");
+
+    // Usage: DurabilityBenchmark [configurations...], each a durability mode with an optional "+journal",
+    // defaults to every mode with and without the journal
+    public static void main(String[] args) throws Exception {
+        String[] configurations = args.length > 0 ? args : new String[]{
+                "async", "batched", "sync", "async+journal", "batched+journal", "sync+journal"};
+
+        System.out.println("=== DURABILITY BENCHMARK ===");
+        System.out.println("Each client WRITEs its own file over its own connection for " + DURATION_MS + " ms\n");
+
+        for (String configuration : configurations) {
+            for (int clients : CLIENTS) {
+                Process server = startServer(configuration);
+                try {
+                    run(configuration, clients);
+                } finally {
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    private static Process startServer(String configuration) throws Exception {
+        File dir = Files.createTempDirectory("durabench").toFile();
+        dir.deleteOnExit();
+        new File(dir, "disk.dat").deleteOnExit();
+        new File(dir, "disk.dat.journal").deleteOnExit();
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Dfs.durability=" + configuration.replace("+journal", ""));
+        command.add("-Dfs.journal=" + configuration.endsWith("+journal"));
+        command.add("-Dfs.maxFiles=" + CLIENTS[CLIENTS.length - 1]);
+        command.add("-Dfs.maxBlocks=4096");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("ca.concordia.server.FileServer");
+
+        Process process = new ProcessBuilder(command)
+                .directory(dir)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        // Wait for the listener to come up
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Socket probe = new Socket("localhost", PORT)) {
+                new PrintWriter(probe.getOutputStream(), true).println("exit");
+                return process;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !process.isAlive()) {
+                    process.destroy();
+                    throw new IllegalStateException("Server with " + configuration + " did not start");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void run(String configuration, int clients) throws Exception {
+        long[][] latencies = new long[clients][];
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        long[] deadline = new long[1];
+
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                try (Socket socket = new Socket("localhost", PORT)) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    String filename = "bench" + client;
+                    out.println("CREATE " + filename);
+                    in.readLine();
+                    ready.countDown();
+                    start.await();
+
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        long begin = System.nanoTime();
+                        out.println("WRITE " + filename + " write " + count + " from client " + client);
+                        if (!in.readLine().startsWith("OK")) {
+                            throw new IllegalStateException("WRITE failed");
+                        }
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, count * 2);
+                        }
+                        samples[count++] = System.nanoTime() - begin;
+                    }
+                    out.println("exit");
+                } catch (Exception e) {
+                    System.err.println("Client failed: " + e.getMessage());
+                } finally {
+                    latencies[client] = Arrays.copyOf(samples, count);
+                    ready.countDown();
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        ready.await();
+        long fsyncsBefore = fsyncs();
+        deadline[0] = System.currentTimeMillis() + DURATION_MS;
+        start.countDown();
+        done.await();
+        long fsyncCount = fsyncs() - fsyncsBefore;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%-16s %2d clients: %,8.0f writes/s  p50 %7.3f ms  p99 %7.3f ms  %,7.0f fsyncs/s"
+                        + "  (%.1f writes per fsync)%n",
+                configuration, clients, all.length * 1000.0 / DURATION_MS,
+                percentile(all, 0.50), percentile(all, 0.99), fsyncCount * 1000.0 / DURATION_MS,
+                fsyncCount == 0 ? 0.0 : (double) all.length / fsyncCount);
+    }
+
+    // Total fsyncs so far, from the server's STATS line
+    private static long fsyncs() throws IOException {
+        try (Socket socket = new Socket("localhost", PORT)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("STATS");
+            String stats = in.readLine();
+            out.println("exit");
+            Matcher matcher = FSYNCS.matcher(stats);
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
@@ -14,14 +14,18 @@
 
 package ca.concordia;
 
+import ca.concordia.filesystem.FileSystemOptions;
 import ca.concordia.server.FileServer;
+import ca.concordia.server.ServerOptions;
 import java.io.IOException;
 
 public class Main {
     public static void main(String[] args) throws IOException {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // e.g. -Dfs.maxFiles=50000 -Dfs.maxBlocks=1000000 -Dfs.blockSize=4096 -Dfs.storage=mapped
+        FileServer server = new FileServer(12345, "filesystem.dat",
+                FileSystemOptions.fromSystemProperties(), ServerOptions.fromSystemProperties());
         server.start();
     }
 }
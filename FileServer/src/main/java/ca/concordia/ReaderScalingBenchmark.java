@@ -0,0 +1,86 @@
+package ca.concordia;
+
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.filesystem.device.StorageMode;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ReaderScalingBenchmark {
+
+    private static final String DISK = "bench_disk.dat";
+    private static final int BLOCK_SIZE = 128;
+    private static final int BLOCK_COUNT = 65536;   // 8 MiB, stays in the page cache
+    private static final long DURATION_MS = 2000;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    // Usage: ReaderScalingBenchmark [storage modes...], defaults to FILE and CHANNEL
+    public static void main(String[] args) throws Exception {
+        String[] modes = args.length > 0 ? args : new String[]{"FILE", "CHANNEL"};
+
+        System.out.println("=== READER SCALING BENCHMARK ===");
+        System.out.println("Random " + BLOCK_SIZE + "-byte block reads over " + BLOCK_COUNT + " blocks\n");
+
+        prepareDisk();
+
+        for (String mode : modes) {
+            StorageMode storageMode = StorageMode.valueOf(mode.toUpperCase());
+            try (BlockDevice device = storageMode.open(DISK, BLOCK_SIZE, BLOCK_COUNT)) {
+                double baseline = 0;
+                for (int threads : THREADS) {
+                    double opsPerSecond = run(device, threads);
+                    if (threads == 1) {
+                        baseline = opsPerSecond;
+                    }
+                    System.out.printf("%-8s %2d readers: %,12.0f reads/s  (x%.2f)%n",
+                            storageMode, threads, opsPerSecond, opsPerSecond / baseline);
+                }
+            }
+            System.out.println();
+        }
+
+        new File(DISK).delete();
+    }
+
+    private static void prepareDisk() throws Exception {
+        new File(DISK).delete();
+        try (BlockDevice device = StorageMode.CHANNEL.open(DISK, BLOCK_SIZE, BLOCK_COUNT)) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                block[0] = (byte) i;
+                device.writeBlock(i, block, 0, BLOCK_SIZE);
+            }
+        }
+    }
+
+    private static double run(BlockDevice device, int threads) throws InterruptedException {
+        LongAdder reads = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + DURATION_MS;
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                byte[] buffer = new byte[BLOCK_SIZE];
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline) {
+                        device.readBlock(random.nextInt(BLOCK_COUNT), buffer, 0, BLOCK_SIZE);
+                        reads.increment();
+                    }
+                } catch (Exception e) {
+                    System.err.println("Reader failed: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        start.countDown();
+        done.await();
+        return reads.sum() * 1000.0 / DURATION_MS;
+    }
+}
@@ -0,0 +1,45 @@
+package ca.concordia.filesystem;
+
+// One CREATE, WRITE or DELETE inside FileSystemManager.applyBatch
+public class BatchOperation {
+
+    public enum Type {
+        CREATE,
+        WRITE,
+        DELETE
+    }
+
+    private final Type type;
+    private final String filename;
+    private final byte[] data; // WRITE only
+
+    private BatchOperation(Type type, String filename, byte[] data) {
+        this.type = type;
+        this.filename = filename;
+        this.data = data;
+    }
+
+    public static BatchOperation create(String filename) {
+        return new BatchOperation(Type.CREATE, filename, null);
+    }
+
+    public static BatchOperation write(String filename, byte[] data) {
+        return new BatchOperation(Type.WRITE, filename, data);
+    }
+
+    public static BatchOperation delete(String filename) {
+        return new BatchOperation(Type.DELETE, filename, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,13 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+
+// Receives a file from FileSystemManager.readFile chunk by chunk instead of as one array
+public interface ChunkSink {
+
+    // Called once, before any chunk
+    void size(int filesize) throws IOException;
+
+    // The chunk buffer is reused after this returns
+    void chunk(byte[] data, int offset, int length) throws IOException;
+}
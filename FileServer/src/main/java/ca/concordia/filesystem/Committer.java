@@ -0,0 +1,310 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Makes metadata flushes durable on a background thread, in groups, when the Durability mode says so. Each flush
+// is one transaction. With the journal it carries the images of the metadata blocks it changed, which are logged
+// and then written home; without, the blocks are already written home and the transaction only stands for the
+// device flush that makes them durable. Either way a whole group shares the same fsyncs.
+class Committer implements Closeable {
+
+    private final BlockDevice device;
+    private final Journal journal; // null without fs.journal
+    private final Durability durability;
+    private final long windowNanos; // BATCHED: longest a flush waits for company, ASYNC: flush interval
+    private final int batchSize;    // BATCHED: group size that is committed without waiting out the window
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    private List<Transaction> pending = new ArrayList<>();
+    private long pendingSince;      // System.nanoTime() when the oldest pending transaction was queued
+    private long lastSequence;      // last sequence handed out
+    private long durableSequence;   // every transaction up to this one is durable
+    private boolean syncRequested;  // commit what is pending now, whatever the mode
+    private IOException failure;    // set once a commit failed, nothing is accepted after that
+    private boolean closed;
+    private final Thread thread;
+
+    // Committer thread only writes these
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder fsyncNanos = new LongAdder();
+    private volatile long maxFsyncNanos;
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder transactions = new LongAdder();
+
+    private static final class Transaction {
+        final long sequence;
+        final int[] pages;
+        final byte[] images;
+        final Runnable onDurable;
+
+        Transaction(long sequence, int[] pages, byte[] images, Runnable onDurable) {
+            this.sequence = sequence;
+            this.pages = pages;
+            this.images = images;
+            this.onDurable = onDurable;
+        }
+    }
+
+    Committer(BlockDevice device, Journal journal, FileSystemOptions options) {
+        this.device = device;
+        this.journal = journal;
+        this.durability = options.getDurability();
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(
+                durability == Durability.ASYNC ? options.getFlushIntervalMs() : options.getBatchDelayMs());
+        this.batchSize = options.getBatchSize();
+
+        thread = new Thread(this::run, "fs-committer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Queue one flush: the images of the given metadata pages (blockSize bytes each, in page order), empty
+    // without the journal. onDurable, if not null, runs on the committer thread once it is durable.
+    // Called with the metadata lock held, so sequence order is the order the changes were made in.
+    long submit(int[] pages, byte[] images, Runnable onDurable) throws IOException {
+        lock.lock();
+        try {
+            checkUsable();
+            boolean first = pending.isEmpty();
+            if (first) {
+                pendingSince = System.nanoTime();
+            }
+            pending.add(new Transaction(++lastSequence, pages, images, onDurable));
+            // While a window is running the committer wakes up on its own; only wake it when that changes
+            if (first || durability == Durability.SYNC
+                    || (durability == Durability.BATCHED && pending.size() == batchSize)) {
+                queued.signal();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Return once the mutation that submitted sequence may be acknowledged: straight away in ASYNC mode,
+    // otherwise when it is durable
+    void await(long sequence) throws IOException {
+        if (durability != Durability.ASYNC) {
+            awaitDurable(sequence);
+        }
+    }
+
+    // Commit everything submitted so far without waiting for the batch window or flush interval
+    void sync() throws IOException {
+        long target;
+        lock.lock();
+        try {
+            checkUsable();
+            target = lastSequence;
+            syncRequested = true;
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(target);
+    }
+
+    private void awaitDurable(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (durableSequence < sequence && failure == null) {
+                committed.await();
+            }
+            if (durableSequence < sequence) {
+                throw new IOException("Commit failed: " + failure.getMessage(), failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a commit");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("Commit failed: " + failure.getMessage(), failure);
+        }
+        if (closed) {
+            throw new IOException("File system is closed");
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Transaction> group;
+            lock.lock();
+            try {
+                while (true) {
+                    if (!pending.isEmpty() && (closed || syncRequested || durability == Durability.SYNC
+                            || (durability == Durability.BATCHED && pending.size() >= batchSize))) {
+                        break;
+                    }
+                    if (pending.isEmpty()) {
+                        if (closed) {
+                            return;
+                        }
+                        queued.awaitUninterruptibly();
+                        continue;
+                    }
+                    long remaining = pendingSince + windowNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        queued.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        // only close() ends this thread
+                    }
+                }
+                // Everything queued up meanwhile goes out together
+                group = pending;
+                pending = new ArrayList<>();
+                syncRequested = false;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                commit(group);
+
+                // Before waking anyone, so a sync() returns with the freed blocks already reusable
+                for (Transaction transaction : group) {
+                    if (transaction.onDurable != null) {
+                        transaction.onDurable.run();
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                // The thread stops either way, so waiters must hear about it rather than block for good
+                error = new IOException(e.toString(), e);
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSequence = group.get(group.size() - 1).sequence;
+                }
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                System.err.println("Commit failed: " + error.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void commit(List<Transaction> group) throws IOException {
+        // Data blocks, and without the journal the metadata too, are already written; this makes them durable
+        timedFlush(device::flush);
+
+        if (journal != null) {
+            int size = 0;
+            for (Transaction transaction : group) {
+                size += transaction.pages.length > 0 ? journal.recordSize(transaction.pages.length) : 0;
+            }
+            // A group with nothing to log, e.g. only SYNC requests, needs no journal write or fsync
+            if (size > 0) {
+                ByteBuffer records = ByteBuffer.allocate(size);
+                for (Transaction transaction : group) {
+                    if (transaction.pages.length > 0) {
+                        journal.encode(records, transaction.sequence, transaction.pages, transaction.images);
+                    }
+                }
+                records.flip();
+                journal.append(records);
+                timedFlush(journal::force);
+
+                // Logged: write the pages home, oldest first so the newest image of a page wins
+                for (Transaction transaction : group) {
+                    for (int i = 0; i < transaction.pages.length; i++) {
+                        device.writeBlock(transaction.pages[i], transaction.images, i * device.getBlockSize(),
+                                device.getBlockSize());
+                    }
+                }
+                if (journal.needsCheckpoint()) {
+                    timedFlush(device::flush);
+                    journal.truncate();
+                }
+            }
+        }
+
+        groups.increment();
+        transactions.add(group.size());
+    }
+
+    private interface Flush {
+        void run() throws IOException;
+    }
+
+    private void timedFlush(Flush flush) throws IOException {
+        long start = System.nanoTime();
+        flush.run();
+        long elapsed = System.nanoTime() - start;
+        fsyncs.increment();
+        fsyncNanos.add(elapsed);
+        if (elapsed > maxFsyncNanos) {
+            maxFsyncNanos = elapsed;
+        }
+    }
+
+    // Commit what is still pending and stop the committer thread; the journal, if any, is checkpointed and closed
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal != null) {
+            try {
+                if (failure == null) {
+                    device.flush();
+                    journal.truncate();
+                }
+            } finally {
+                journal.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        long count = fsyncs.sum();
+        long groupCount = groups.sum();
+        return String.format("durability %s%s, fsyncs=%d avg=%.3f ms max=%.3f ms, commits=%d in %d groups (%.1f per group)",
+                durability, journal != null ? " journaled" : "", count,
+                count == 0 ? 0.0 : fsyncNanos.sum() / 1e6 / count, maxFsyncNanos / 1e6,
+                transactions.sum(), groupCount, groupCount == 0 ? 0.0 : (double) transactions.sum() / groupCount);
+    }
+}
@@ -0,0 +1,8 @@
+package ca.concordia.filesystem;
+
+// When a mutation counts as done, traded against how many fsyncs the disk has to do
+public enum Durability {
+    ASYNC,   // return at once, changes are flushed in the background every flushInterval
+    BATCHED, // return once durable, flushes wait up to batchDelay or batchSize mutations to share one fsync
+    SYNC     // return once durable, flushing as soon as anything is pending
+}
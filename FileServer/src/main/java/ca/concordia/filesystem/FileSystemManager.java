@@ -1,71 +1,257 @@
 package ca.concordia.filesystem;
 
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.datastructures.Extent;
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
+import ca.concordia.filesystem.datastructures.FileSnapshot;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.filesystem.device.CachingBlockDevice;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
 
 public class FileSystemManager {
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
+    // Default geometry, used when formatting a new disk without explicit settings
+    public static final int DEFAULT_MAXFILES = 5;
+    public static final int DEFAULT_MAXBLOCKS = 10;
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+
+    private static final int FILENAME_SIZE = 11;
+    private static final int FENTRY_SIZE = 19; // 11 bytes (filename) + 4 bytes (size) + 4 bytes (firstblock)
+    private static final int FNODE_SIZE = 8;   // 4 bytes (blockindex) + 4 bytes (next)
+    private static final int STREAM_CHUNK = 64 * 1024; // bytes handed to a ChunkSink at a time
+
     private static FileSystemManager instance = null;
-    private final RandomAccessFile disk;
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    private static final int BLOCK_SIZE = 128;
+    private final BlockDevice device;
+
+    // Lock order is writer lock, file lock, then metaLock. Both are striped by filename hash. A writer lock is
+    // held for a whole create, write or delete, so writers of a stripe take turns; the file lock guards a file's
+    // entry and data blocks and is only write-locked to switch a file to its new version, which was written to
+    // fresh blocks meanwhile. metaLock guards the tables, the free map and the metadata image.
+    // Readers only take a file lock optimistically and retry if a writer got in the way; streaming readers
+    // pin the version they read instead, see pin
+    private final ReentrantLock[] writerLocks;
+    private final StampedLock[] fileLocks;
+    private final ReentrantLock metaLock = new ReentrantLock();
+
+    private final Superblock superblock; // Volume geometry, stored at the start of block 0
+    private final int maxFiles;
+    private final int maxBlocks;
+    private final int blockSize;
 
     private FEntry[] fileEntries;  // Array of file entries
     private FNode[] fileNodes;     // Array of file nodes
+    private BlockBitmap freeMap;   // Free-space bitmap, one bit per block
     private int metadataBlocks;    // Number of blocks used for metadata
+    private byte[] metadataImage;  // In-memory copy of the metadata blocks, as stored on disk
+    private ByteBuffer metadata;   // View over metadataImage for encoding records
+    private final BitSet dirtyPages = new BitSet(); // Metadata blocks changed since the last flush
+    private final Journal journal; // null unless fs.journal is set, metadata then reaches the disk through it
+    private final Committer committer; // makes flushes durable as the durability mode says, null while formatting
+    private final List<int[]> freedBlocks = new ArrayList<>(); // freed since the last flush
+    private int releasing; // freed blocks not yet back in the free map
+    private final boolean lazyTrim; // freed blocks keep their old contents, see FileSystemOptions.isLazyTrim
+    private final BitSet unscrubbed = new BitSet(); // lazy trim: blocks freed since startup and not zeroed yet
+    private final Thread scrubber; // zeroes the unscrubbed blocks, null unless fs.scrubIntervalMs is set
+    private final CountDownLatch scrubberStop = new CountDownLatch(1);
+    private final List<Pin> pins = new ArrayList<>(); // open streaming reads, guarded by metaLock
+
+    private final Map<String, FileSnapshot> files; // filename -> published snapshot, read without locks
+    private final Deque<Integer> freeEntries = new ArrayDeque<>();  // unused entry indexes
+    private volatile String[] fileList = new String[0]; // names in entry order, replaced on create/delete
+    private final AtomicLong generations = new AtomicLong(); // source of FileSnapshot generations
+
+    // A streaming read's hold on the version it reads: blocks freed meanwhile stay allocated until no pin
+    // covers them, so the read needs no lock while its data goes out
+    private static final class Pin {
+        final FileSnapshot snapshot;
+        final Extent[] byStart; // the version's extents ordered by first block
+        final BitSet held = new BitSet(); // freed blocks waiting for this pin to go
+
+        Pin(FileSnapshot snapshot) {
+            this.snapshot = snapshot;
+            byStart = snapshot.getExtents().clone();
+            Arrays.sort(byStart, Comparator.comparingInt(Extent::getStart));
+        }
+
+        boolean covers(int block) {
+            int low = 0;
+            int high = byStart.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (block < byStart[mid].getStart()) {
+                    high = mid - 1;
+                } else if (block >= byStart[mid].getEnd()) {
+                    low = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 
     // Private constructor for singleton
-    private FileSystemManager(String filename, int totalSize) throws IOException {
-        this.disk = new RandomAccessFile(filename, "rw");
+    private FileSystemManager(String filename, FileSystemOptions options) throws IOException {
+        this.writerLocks = new ReentrantLock[options.getLockStripes()];
+        this.fileLocks = new StampedLock[options.getLockStripes()];
+        for (int i = 0; i < fileLocks.length; i++) {
+            writerLocks[i] = new ReentrantLock();
+            fileLocks[i] = new StampedLock();
+        }
+
+        // An existing disk keeps the geometry it was formatted with
+        Superblock existing = options.getStorageMode().isPersistent() ? readSuperblock(filename) : null;
+        boolean formatted = existing != null;
+        this.superblock = formatted ? existing
+                : new Superblock(options.getBlockSize(), options.getMaxFiles(), options.getMaxBlocks());
+        this.maxFiles = superblock.getMaxFiles();
+        this.maxBlocks = superblock.getMaxBlocks();
+        this.blockSize = superblock.getBlockSize();
 
         // Calculate metadata size
-        int fentrySize = 15; // 11 bytes (filename) + 2 bytes (size) + 2 bytes (firstblock)
-        int fnodeSize = 8;   // 4 bytes (blockindex) + 4 bytes (next)
-        int metadataSize = (MAXFILES * fentrySize) + (MAXBLOCKS * fnodeSize);
-        metadataBlocks = (int) Math.ceil((double) metadataSize / BLOCK_SIZE);
+        long metadataSize = metadataSize(maxFiles, maxBlocks);
+        metadataBlocks = (int) ((metadataSize + blockSize - 1) / blockSize);
+        if (metadataBlocks >= maxBlocks) {
+            throw new IllegalArgumentException("Disk too small to hold file system metadata");
+        }
+
+        BlockDevice storage = options.getStorageMode().open(filename, blockSize, maxBlocks);
+        this.device = options.getCacheBlocks() > 0
+                ? new CachingBlockDevice(storage, options.getCacheBlocks(), options.getCachePolicy())
+                : storage;
 
         // Initialize arrays
-        fileEntries = new FEntry[MAXFILES];
-        fileNodes = new FNode[MAXBLOCKS];
+        metadataImage = new byte[Math.multiplyExact(metadataBlocks, blockSize)];
+        metadata = ByteBuffer.wrap(metadataImage);
+        fileEntries = new FEntry[maxFiles];
+        fileNodes = new FNode[maxBlocks];
+        files = new ConcurrentHashMap<>(maxFiles * 2);
+
+        this.lazyTrim = options.isLazyTrim();
+
+        // The journal is replayed before the metadata is read, and emptied when the disk is formatted anew
+        Journal log = null;
+        if (options.isJournal() && options.getStorageMode().isPersistent()) {
+            log = Journal.open(Paths.get(filename + ".journal"), device, formatted);
+        }
 
         // Initialize file system if file is empty or new
-        if (disk.length() == 0) {
-            initializeFileSystem(totalSize);
+        if (!formatted) {
+            initializeFileSystem();
         } else {
             loadFileSystem();
         }
+        this.journal = log;
+        this.committer = new Committer(device, log, options);
+        if (!dirtyPages.isEmpty()) {
+            flush(); // persist the chains loading had to cut
+        }
+
+        if (lazyTrim && options.getScrubIntervalMs() > 0) {
+            long interval = options.getScrubIntervalMs();
+            scrubber = new Thread(() -> scrub(interval), "fs-scrubber");
+            scrubber.setDaemon(true);
+            scrubber.setPriority(Thread.MIN_PRIORITY);
+            scrubber.start();
+        } else {
+            scrubber = null;
+        }
     }
 
     // Singleton getInstance method
     public static synchronized FileSystemManager getInstance(String filename, int totalSize) throws IOException {
+        FileSystemOptions options = new FileSystemOptions();
+        options.setMaxBlocks(totalSize / DEFAULT_BLOCK_SIZE);
+        return getInstance(filename, options);
+    }
+
+    // Geometry only applies when the disk is formatted; an existing disk is opened as it is
+    public static synchronized FileSystemManager getInstance(String filename, FileSystemOptions options)
+            throws IOException {
         if (instance == null) {
-            instance = new FileSystemManager(filename, totalSize);
+            instance = new FileSystemManager(filename, options);
         }
         return instance;
     }
 
-    private void initializeFileSystem(int totalSize) throws IOException {
-        // Set file size
-        disk.setLength(totalSize);
+    // Bytes needed for the superblock, entry table, node table and free-space bitmap
+    private static long metadataSize(int maxFiles, int maxBlocks) {
+        return Superblock.SIZE
+                + (long) maxFiles * FENTRY_SIZE
+                + (long) maxBlocks * FNODE_SIZE
+                + BlockBitmap.byteLength(maxBlocks);
+    }
+
+    // Superblock of an existing disk image, or null if the disk still has to be formatted
+    private static Superblock readSuperblock(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.exists() || file.length() == 0) {
+            return null;
+        }
+
+        byte[] header = new byte[Superblock.SIZE];
+        try (RandomAccessFile disk = new RandomAccessFile(file, "r")) {
+            disk.readFully(header);
+        }
+        try {
+            return Superblock.readFrom(ByteBuffer.wrap(header));
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
 
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    private void initializeFileSystem() throws IOException {
         // Initialize file entries (all empty)
-        for (int i = 0; i < MAXFILES; i++) {
-            fileEntries[i] = new FEntry("", (short) 0, (short) -1);
+        for (int i = 0; i < maxFiles; i++) {
+            fileEntries[i] = new FEntry("", 0, -1);
         }
+        rebuildIndex();
 
         // Initialize file nodes
         // First 'metadataBlocks' nodes are reserved for metadata
-        for (int i = 0; i < MAXBLOCKS; i++) {
+        freeMap = new BlockBitmap(maxBlocks);
+        for (int i = 0; i < maxBlocks; i++) {
             if (i < metadataBlocks) {
                 fileNodes[i] = new FNode(i, -1); // Mark metadata blocks as used
+                freeMap.markUsed(i);
             } else {
                 fileNodes[i] = new FNode(-i, -1); // Negative means free
             }
@@ -74,339 +260,1124 @@ public class FileSystemManager {
         // Write metadata to disk
         saveMetadata();
 
-        // Zero out all data blocks
-        byte[] zeros = new byte[BLOCK_SIZE];
-        for (int i = metadataBlocks; i < MAXBLOCKS; i++) {
-            disk.seek((long) i * BLOCK_SIZE);
-            disk.write(zeros);
+        // Zero out all data blocks; with lazy trim whatever the image held before stays until it is overwritten
+        if (lazyTrim) {
+            return;
+        }
+        byte[] zeros = new byte[blockSize];
+        for (int i = metadataBlocks; i < maxBlocks; i++) {
+            device.writeBlock(i, zeros, 0, blockSize);
         }
     }
 
     private void loadFileSystem() throws IOException {
-        disk.seek(0);
+        // Read the whole metadata area in one go and decode it in memory
+        device.readBlocks(0, metadataImage, 0, metadataImage.length);
+        dirtyPages.clear();
+        ByteBuffer buffer = ByteBuffer.wrap(metadataImage);
+        buffer.position(Superblock.SIZE);
 
         // Load file entries
-        for (int i = 0; i < MAXFILES; i++) {
-            byte[] nameBytes = new byte[11];
-            disk.readFully(nameBytes);
+        byte[] nameBytes = new byte[FILENAME_SIZE];
+        for (int i = 0; i < maxFiles; i++) {
+            buffer.get(nameBytes);
             String filename = new String(nameBytes).trim().replace("\0", "");
-            short filesize = disk.readShort();
-            short firstBlock = disk.readShort();
+            int filesize = buffer.getInt();
+            int firstBlock = buffer.getInt();
             fileEntries[i] = new FEntry(filename.isEmpty() ? "" : filename, filesize, firstBlock);
         }
 
         // Load file nodes
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            int blockIndex = disk.readInt();
-            int next = disk.readInt();
+        for (int i = 0; i < maxBlocks; i++) {
+            int blockIndex = buffer.getInt();
+            int next = buffer.getInt();
             fileNodes[i] = new FNode(blockIndex, next);
         }
+
+        // Load free-space bitmap
+        byte[] bitmapBytes = new byte[BlockBitmap.byteLength(maxBlocks)];
+        buffer.get(bitmapBytes);
+        freeMap = BlockBitmap.fromBytes(bitmapBytes, maxBlocks);
+
+        // The node table decides: a crash can leave blocks allocated but never linked, or freed by a commit
+        // whose bitmap update had not been written yet
+        for (int i = metadataBlocks; i < maxBlocks; i++) {
+            if (fileNodes[i].getBlockIndex() == i) {
+                freeMap.markUsed(i);
+            } else {
+                freeMap.markFree(i);
+            }
+        }
+
+        rebuildIndex();
+    }
+
+    // Rebuild the file snapshots, free entry list and listing from the entry and node tables.
+    // A damaged chain is cut where it goes wrong, see validChain
+    private void rebuildIndex() {
+        files.clear();
+        freeEntries.clear();
+        for (int i = 0; i < maxFiles; i++) {
+            FEntry entry = fileEntries[i];
+            if (entry.getFilename().isEmpty()) {
+                freeEntries.addLast(i);
+            } else {
+                List<Integer> chain = validChain(i);
+                // The chain is only walked here, files are read and written by extent
+                Extent[] extents = Extent.fromBlocks(chain.stream().mapToInt(Integer::intValue).toArray());
+                files.put(entry.getFilename(),
+                        new FileSnapshot(i, entry.getFilesize(), extents, generations.incrementAndGet()));
+            }
+        }
+        publishFileList();
+    }
+
+    // Blocks of entry entryIndex's chain, walked for at most maxBlocks steps. The walk stops at a block outside
+    // the data area, a node not in use by that block, or a block seen before; the file is then cut to the
+    // blocks before it and the repaired entry and last node go out with the next flush.
+    private List<Integer> validChain(int entryIndex) {
+        FEntry entry = fileEntries[entryIndex];
+        List<Integer> chain = new ArrayList<>();
+        BitSet seen = new BitSet(maxBlocks);
+        int block = entry.getFirstBlock();
+        for (int steps = 0; block >= 0 && steps < maxBlocks; steps++) {
+            if (block < metadataBlocks || block >= maxBlocks || fileNodes[block].getBlockIndex() != block
+                    || seen.get(block)) {
+                break;
+            }
+            seen.set(block);
+            chain.add(block);
+            block = fileNodes[block].getNext();
+        }
+
+        int validSize = (int) Math.min(entry.getFilesize(), (long) chain.size() * blockSize);
+        if (block < 0 && validSize == entry.getFilesize()) {
+            return chain;
+        }
+        System.err.println("Damaged block chain in " + entry.getFilename() + " at block " + block + ", cut from "
+                + entry.getFilesize() + " to " + validSize + " bytes");
+        if (chain.isEmpty()) {
+            entry.setFirstBlock(-1);
+        } else if (block >= 0) {
+            int last = chain.get(chain.size() - 1);
+            fileNodes[last].setNext(-1);
+            markBlockDirty(last);
+        }
+        entry.setFilesize(validSize);
+        markEntryDirty(entryIndex);
+        return chain;
     }
 
+    // Replace the listing returned by listFiles, called with metaLock held after create/delete
+    private void publishFileList() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < maxFiles; i++) {
+            if (!fileEntries[i].getFilename().isEmpty()) {
+                names.add(fileEntries[i].getFilename());
+            }
+        }
+        fileList = names.toArray(new String[0]);
+    }
+
+    // Lock stripe guarding filename
+    private StampedLock fileLock(String filename) {
+        return fileLocks[stripeIndex(filename)];
+    }
+
+    private ReentrantLock writerLock(String filename) {
+        return writerLocks[stripeIndex(filename)];
+    }
+
+    private int stripeIndex(String filename) {
+        return Math.floorMod(filename.hashCode(), fileLocks.length);
+    }
+
+    // Encode the whole metadata area and write it out, used when formatting
     private void saveMetadata() throws IOException {
-        disk.seek(0);
+        metadata.clear();
+        superblock.writeTo(metadata);
+        markDirty(0, Superblock.SIZE);
 
-        // Save file entries
-        for (int i = 0; i < MAXFILES; i++) {
-            FEntry entry = fileEntries[i];
-            byte[] nameBytes = new byte[11];
-            if (entry.getFilename() != null && !entry.getFilename().isEmpty()) {
-                byte[] name = entry.getFilename().getBytes();
-                System.arraycopy(name, 0, nameBytes, 0, Math.min(name.length, 11));
+        for (int i = 0; i < maxFiles; i++) {
+            markEntryDirty(i);
+        }
+        for (int i = 0; i < maxBlocks; i++) {
+            markBlockDirty(i);
+        }
+
+        flushMetadata();
+    }
+
+    private int entryOffset(int entryIndex) {
+        return Superblock.SIZE + entryIndex * FENTRY_SIZE;
+    }
+
+    private int nodeOffset(int blockIndex) {
+        return Superblock.SIZE + maxFiles * FENTRY_SIZE + blockIndex * FNODE_SIZE;
+    }
+
+    private int bitmapOffset() {
+        return nodeOffset(maxBlocks);
+    }
+
+    // Encode file entry entryIndex into the metadata image and mark its page dirty
+    private void markEntryDirty(int entryIndex) {
+        FEntry entry = fileEntries[entryIndex];
+        int offset = entryOffset(entryIndex);
+
+        Arrays.fill(metadataImage, offset, offset + FILENAME_SIZE, (byte) 0);
+        if (entry.getFilename() != null && !entry.getFilename().isEmpty()) {
+            byte[] name = entry.getFilename().getBytes();
+            System.arraycopy(name, 0, metadataImage, offset, Math.min(name.length, FILENAME_SIZE));
+        }
+        metadata.putInt(offset + FILENAME_SIZE, entry.getFilesize());
+        metadata.putInt(offset + FILENAME_SIZE + 4, entry.getFirstBlock());
+
+        markDirty(offset, FENTRY_SIZE);
+    }
+
+    // Encode the node and free-space bit of block blockIndex and mark their pages dirty
+    private void markBlockDirty(int blockIndex) {
+        FNode node = fileNodes[blockIndex];
+        int offset = nodeOffset(blockIndex);
+        metadata.putInt(offset, node.getBlockIndex());
+        metadata.putInt(offset + 4, node.getNext());
+        markDirty(offset, FNODE_SIZE);
+
+        int bitmapByte = bitmapOffset() + blockIndex / 8;
+        metadataImage[bitmapByte] = freeMap.byteAt(blockIndex / 8);
+        markDirty(bitmapByte, 1);
+    }
+
+    private void markDirty(int offset, int length) {
+        dirtyPages.set(offset / blockSize, (offset + length - 1) / blockSize + 1);
+    }
+
+    // Hand the metadata blocks that changed to the committer and return the sequence to wait for with
+    // awaitCommit, once the locks are released so other threads can join the same group commit meanwhile.
+    // Without the journal the blocks are written back here, one write per run of adjacent dirty blocks and in
+    // no particular order, so a crash can tear a switch: only the journal makes it atomic.
+    // Blocks freed since the last flush are released once this flush is durable.
+    private long flushMetadata() throws IOException {
+        int[] freed = freedBlocks.stream().flatMapToInt(Arrays::stream).toArray();
+        freedBlocks.clear();
+        Runnable onDurable = freed.length == 0 ? null : () -> releaseFreedBlocks(freed);
+
+        if (journal != null) {
+            int[] pages = dirtyPages.stream().toArray();
+            byte[] images = new byte[pages.length * blockSize];
+            for (int i = 0; i < pages.length; i++) {
+                System.arraycopy(metadataImage, pages[i] * blockSize, images, i * blockSize, blockSize);
+            }
+            dirtyPages.clear();
+            return committer.submit(pages, images, onDurable);
+        }
+
+        int page = dirtyPages.nextSetBit(0);
+        while (page >= 0) {
+            int end = dirtyPages.nextClearBit(page);
+            device.writeBlocks(page, metadataImage, page * blockSize, (end - page) * blockSize);
+            page = dirtyPages.nextSetBit(end);
+        }
+        dirtyPages.clear();
+
+        return committer == null ? 0 : committer.submit(new int[0], new byte[0], onDurable);
+    }
+
+    // Caller holds no metaLock; a sequence of 0 means there is nothing to wait for
+    private void awaitCommit(long sequence) throws IOException {
+        if (sequence > 0) {
+            committer.await(sequence);
+        }
+    }
+
+    // Runs on the committer thread once the flush that freed the blocks is durable: until then a crash brings
+    // back the version that still points at them, so only now are they zeroed and handed to another file.
+    // Blocks a streaming read still has pinned wait for unpin instead.
+    private void releaseFreedBlocks(int[] freed) {
+        int[] blocks;
+        metaLock.lock();
+        try {
+            blocks = holdPinned(freed);
+        } finally {
+            metaLock.unlock();
+        }
+        recycleBlocks(blocks);
+    }
+
+    // Caller holds metaLock: blocks an open pin covers are left to that pin, the rest are returned
+    private int[] holdPinned(int[] blocks) {
+        if (pins.isEmpty()) {
+            return blocks;
+        }
+        IntStream.Builder ready = IntStream.builder();
+        for (int block : blocks) {
+            Pin holder = null;
+            for (Pin pin : pins) {
+                if (pin.covers(block)) {
+                    holder = pin;
+                    break;
+                }
+            }
+            if (holder != null) {
+                holder.held.set(block);
+            } else {
+                ready.add(block);
+            }
+        }
+        return ready.build().toArray();
+    }
+
+    // Zero released blocks and put them back in the free map. With lazy trim they are handed over as they
+    // are, reads never go past the file size.
+    // The bitmap change goes out with the next flush; if it never does, loading repairs it.
+    private void recycleBlocks(int[] blocks) {
+        if (blocks.length == 0) {
+            return;
+        }
+        boolean zeroed = true;
+        try {
+            byte[] zeros = new byte[blockSize];
+            for (int block : blocks) {
+                if (!lazyTrim) {
+                    device.writeBlock(block, zeros, 0, blockSize);
+                }
+                device.discard(block);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not zero freed blocks, leaving them allocated: " + e.getMessage());
+            zeroed = false;
+        }
+
+        metaLock.lock();
+        try {
+            if (zeroed) {
+                for (int block : blocks) {
+                    freeMap.markFree(block);
+                    markBlockDirty(block);
+                    if (lazyTrim) {
+                        unscrubbed.set(block);
+                    }
+                }
             }
-            disk.write(nameBytes);
-            disk.writeShort(entry.getFilesize());
-            disk.writeShort(entry.getFirstBlock());
+            releasing -= blocks.length;
+        } finally {
+            metaLock.unlock();
         }
+    }
+
+    // Lazy trim scrubber: zero one freed block every interval ms until close. The block is taken in the free map
+    // while it is written so no file can get it meanwhile; only the in-memory map changes, and a block that was
+    // allocated again first is skipped, its new owner overwrites it anyway. Blocks freed before startup are left.
+    private void scrub(long intervalMs) {
+        byte[] zeros = new byte[blockSize];
+        try {
+            while (!scrubberStop.await(intervalMs, TimeUnit.MILLISECONDS)) {
+                int block;
+                metaLock.lock();
+                try {
+                    block = unscrubbed.nextSetBit(0);
+                    if (block < 0) {
+                        continue;
+                    }
+                    unscrubbed.clear(block);
+                    if (freeMap.isUsed(block)) {
+                        continue;
+                    }
+                    freeMap.markUsed(block);
+                    releasing++;
+                } finally {
+                    metaLock.unlock();
+                }
 
-        // Save file nodes
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            FNode node = fileNodes[i];
-            disk.writeInt(node.getBlockIndex());
-            disk.writeInt(node.getNext());
+                try {
+                    device.writeBlock(block, zeros, 0, blockSize);
+                } catch (IOException e) {
+                    System.err.println("Could not scrub block " + block + ": " + e.getMessage());
+                }
+
+                metaLock.lock();
+                try {
+                    freeMap.markFree(block);
+                    releasing--;
+                } finally {
+                    metaLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // only close() stops the scrubber
         }
     }
 
     public void createFile(String filename) throws Exception {
+        checkCreateName(filename);
+
+        ReentrantLock writerLock = writerLock(filename);
+        StampedLock fileLock = fileLock(filename);
+        writerLock.lock();
+        long commit;
+        try {
+            long stamp = fileLock.writeLock();
+            try {
+                commit = createLocked(filename, true);
+            } finally {
+                fileLock.unlockWrite(stamp);
+            }
+        } finally {
+            writerLock.unlock();
+        }
+        awaitCommit(commit);
+    }
+
+    private static void checkCreateName(String filename) {
         if (filename == null || filename.isEmpty()) {
             throw new IllegalArgumentException("Filename cannot be empty");
         }
 
-        if (filename.length() > 11) {
+        if (filename.length() > FILENAME_SIZE) {
             throw new IllegalArgumentException("filename too large");
         }
+    }
 
-        rwLock.writeLock().lock();
+    private static void checkName(String filename) {
+        if (filename == null || filename.isEmpty()) {
+            throw new IllegalArgumentException("Filename cannot be empty");
+        }
+    }
+
+    // Caller holds both locks of the file's stripe; flush=false leaves the metadata write to the caller.
+    // Returns the commit to wait for once the stripe is unlocked, as do the other *Locked methods.
+    private long createLocked(String filename, boolean flush) throws Exception {
+        long commit = 0;
+        metaLock.lock();
         try {
             // Check if file already exists
-            for (int i = 0; i < MAXFILES; i++) {
-                if (fileEntries[i].getFilename().equals(filename)) {
-                    throw new IllegalArgumentException("File already exists");
-                }
+            if (files.containsKey(filename)) {
+                throw new IllegalArgumentException("File already exists");
             }
 
             // Find free entry
-            int freeEntryIndex = -1;
-            for (int i = 0; i < MAXFILES; i++) {
-                if (fileEntries[i].getFilename().isEmpty()) {
-                    freeEntryIndex = i;
-                    break;
-                }
-            }
-
-            if (freeEntryIndex == -1) {
+            Integer freeEntryIndex = freeEntries.pollFirst();
+            if (freeEntryIndex == null) {
                 throw new Exception("No free file entries available");
             }
 
             // Create empty file
-            fileEntries[freeEntryIndex] = new FEntry(filename, (short) 0, (short) -1);
+            fileEntries[freeEntryIndex] = new FEntry(filename, 0, -1);
+            markEntryDirty(freeEntryIndex);
 
             // Save metadata
-            saveMetadata();
+            if (flush) {
+                commit = flushMetadata();
+            }
+
+            files.put(filename, new FileSnapshot(freeEntryIndex, 0, new Extent[0], generations.incrementAndGet()));
+            publishFileList();
 
         } finally {
-            rwLock.writeLock().unlock();
+            metaLock.unlock();
         }
+        return commit;
     }
 
     public boolean writeFile(String filename, String content) throws Exception {
-        if (filename == null || filename.isEmpty()) {
-            throw new IllegalArgumentException("Filename cannot be empty");
+        return writeFile(filename, content.getBytes());
+    }
+
+    // Raw bytes as they are sent in binary frames, no charset conversion
+    public boolean writeFile(String filename, byte[] data) throws Exception {
+        writeFile(filename, new ByteArrayInputStream(data), data.length);
+        return true;
+    }
+
+    // Write length bytes from data without holding them in memory. The new version goes to fresh blocks,
+    // reserved and filled with no lock held since nothing can reach them yet, so readers keep reading the old
+    // version meanwhile and a slow sender holds back nobody; the stripe is only locked to swap the new blocks
+    // in, and the old ones are freed once that swap is durable. data must supply at least length bytes.
+    public void writeFile(String filename, InputStream data, int length) throws Exception {
+        checkName(filename);
+        if (!files.containsKey(filename)) {
+            throw new IllegalArgumentException("file " + filename + " does not exist");
         }
 
-        byte[] data = content.getBytes();
+        int[] allocatedBlocks = reserveBlocks(length);
+        try {
+            fillBlocks(allocatedBlocks, data, length);
+        } catch (IOException e) {
+            releaseBlocks(allocatedBlocks);
+            throw e;
+        }
 
-        rwLock.writeLock().lock();
+        ReentrantLock writerLock = writerLock(filename);
+        StampedLock fileLock = fileLock(filename);
+        writerLock.lock();
+        long commit;
         try {
-            // Find file entry
-            int entryIndex = -1;
-            for (int i = 0; i < MAXFILES; i++) {
-                if (fileEntries[i].getFilename().equals(filename)) {
-                    entryIndex = i;
-                    break;
+            long stamp = fileLock.writeLock();
+            try {
+                FileSnapshot snapshot = files.get(filename);
+                if (snapshot == null) {
+                    // Deleted while the data was arriving
+                    releaseBlocks(allocatedBlocks);
+                    throw new IllegalArgumentException("file " + filename + " does not exist");
                 }
+                commit = commitBlocks(filename, snapshot, allocatedBlocks, length, true);
+            } finally {
+                fileLock.unlockWrite(stamp);
             }
+        } finally {
+            writerLock.unlock();
+        }
+        awaitCommit(commit);
+    }
+
+    // Caller holds both locks of the file's stripe; flush=false leaves the metadata write to the caller
+    private long writeLocked(String filename, byte[] data, boolean flush) throws Exception {
+        // Find file entry
+        FileSnapshot snapshot = files.get(filename);
+
+        if (snapshot == null) {
+            throw new IllegalArgumentException("file " + filename + " does not exist");
+        }
+
+        // Allocate new blocks, the old ones stay in use until the new data is written
+        int[] allocatedBlocks = reserveBlocks(data.length);
+
+        // Write data to blocks, no other file can reach them yet
+        try {
+            fillBlocks(allocatedBlocks, new ByteArrayInputStream(data), data.length);
+        } catch (IOException e) {
+            // Rollback on error - give the new blocks back
+            releaseBlocks(allocatedBlocks);
+            throw e;
+        }
+
+        return commitBlocks(filename, snapshot, allocatedBlocks, data.length, flush);
+    }
 
-            if (entryIndex == -1) {
+    // Overwrite data.length bytes at offset, growing the file if they run past its end; offset may be at most
+    // the current size. Only the blocks the range covers are rewritten: each is copied to a new block with the
+    // new bytes merged in and spliced into the chain in place of the old one, so a small update costs a few
+    // blocks whatever the file size, and a failed write leaves the old version intact.
+    public void writeFile(String filename, int offset, byte[] data) throws Exception {
+        checkName(filename);
+
+        ReentrantLock writerLock = writerLock(filename);
+        writerLock.lock();
+        long commit;
+        try {
+            FileSnapshot snapshot = files.get(filename);
+            if (snapshot == null) {
                 throw new IllegalArgumentException("file " + filename + " does not exist");
             }
+            commit = writeRange(filename, snapshot, offset, data);
+        } finally {
+            writerLock.unlock();
+        }
+        awaitCommit(commit);
+    }
 
-            FEntry entry = fileEntries[entryIndex];
+    // Add data at the end of the file, rewriting only its last partial block
+    public void appendFile(String filename, byte[] data) throws Exception {
+        checkName(filename);
 
-            // Calculate blocks needed
-            int blocksNeeded = (int) Math.ceil((double) data.length / BLOCK_SIZE);
+        ReentrantLock writerLock = writerLock(filename);
+        writerLock.lock();
+        long commit;
+        try {
+            FileSnapshot snapshot = files.get(filename);
+            if (snapshot == null) {
+                throw new IllegalArgumentException("file " + filename + " does not exist");
+            }
+            commit = writeRange(filename, snapshot, snapshot.getFilesize(), data);
+        } finally {
+            writerLock.unlock();
+        }
+        awaitCommit(commit);
+    }
+
+    // Caller holds the stripe's writer lock, so snapshot stays current; the file lock is only taken for the splice
+    private long writeRange(String filename, FileSnapshot snapshot, int offset, byte[] data)
+            throws Exception {
+        int size = snapshot.getFilesize();
+        if (offset < 0 || offset > size) {
+            throw new IllegalArgumentException("offset " + offset + " is outside of " + filename
+                    + " (" + size + " bytes)");
+        }
+        if (data.length == 0) {
+            return 0;
+        }
+        if ((long) offset + data.length > (long) maxBlocks * blockSize) {
+            throw new Exception("file too large");
+        }
 
-            // Count free blocks
-            int freeBlocks = 0;
-            for (int i = metadataBlocks; i < MAXBLOCKS; i++) {
-                if (fileNodes[i].getBlockIndex() < 0) {
-                    freeBlocks++;
+        int end = offset + data.length;
+        int newSize = Math.max(size, end);
+        int oldCount = snapshot.getBlockCount();
+        int first = offset / blockSize;
+        int last = (end - 1) / blockSize;
+
+        // New blocks for the covered range, filled before anything points at them
+        int[] allocatedBlocks = allocateBlocks(last - first + 1);
+        try {
+            byte[] blockData = new byte[blockSize];
+            for (int i = first; i <= last; i++) {
+                int blockStart = i * blockSize;
+                int from = Math.max(offset, blockStart) - blockStart; // part of this block being replaced
+                int to = Math.min(end, blockStart + blockSize) - blockStart;
+
+                // Keep the old bytes around the change; a block past the old end of file starts out empty
+                int kept = i < oldCount ? Math.min(blockSize, size - blockStart) : 0;
+                boolean merge = kept > 0 && (from > 0 || to < kept);
+                if (merge) {
+                    device.readBlock(snapshot.blockAt(i), blockData, 0, kept);
                 }
+                System.arraycopy(data, blockStart + from - offset, blockData, from, to - from);
+                Arrays.fill(blockData, Math.max(to, merge ? kept : 0), blockSize, (byte) 0);
+
+                device.writeBlock(allocatedBlocks[i - first], blockData, 0, blockSize);
             }
+        } catch (IOException e) {
+            releaseBlocks(allocatedBlocks);
+            throw e;
+        }
+
+        // The replaced blocks leave the file, the extents before and after the range stay where they are
+        int[] replaced = snapshot.getBlocks(first, Math.min(last + 1, oldCount));
+        Extent[] extents = Extent.concat(snapshot.getExtents(0, first), Extent.fromBlocks(allocatedBlocks),
+                snapshot.getExtents(last + 1, oldCount));
+        int next = last + 1 < oldCount ? snapshot.blockAt(last + 1) : -1;
+
+        int entryIndex = snapshot.getEntryIndex();
+        FEntry entry = fileEntries[entryIndex];
+        long commit;
+        StampedLock fileLock = fileLock(filename);
+        long stamp = fileLock.writeLock();
+        metaLock.lock();
+        try {
+            markBlocksFree(replaced);
+
+            // Splice the new blocks in: only their nodes and the node just before them change
+            for (int i = 0; i < allocatedBlocks.length; i++) {
+                int block = allocatedBlocks[i];
+                fileNodes[block].setBlockIndex(block);
+                fileNodes[block].setNext(i + 1 < allocatedBlocks.length ? allocatedBlocks[i + 1] : next);
+                markBlockDirty(block);
+            }
+            if (first > 0) {
+                int previous = snapshot.blockAt(first - 1);
+                fileNodes[previous].setNext(allocatedBlocks[0]);
+                markBlockDirty(previous);
+            } else {
+                entry.setFirstBlock(allocatedBlocks[0]);
+            }
+
+            entry.setFilesize(newSize);
+            markEntryDirty(entryIndex);
+            commit = flushMetadata();
+            files.put(filename, new FileSnapshot(entryIndex, newSize, extents, generations.incrementAndGet()));
+        } finally {
+            metaLock.unlock();
+            fileLock.unlockWrite(stamp);
+        }
+        return commit;
+    }
+
+    // Take enough free blocks for length bytes out of the free map
+    private int[] reserveBlocks(int length) throws Exception {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length cannot be negative");
+        }
 
-            if (blocksNeeded > freeBlocks) {
-                throw new Exception("file too large");
+        // Calculate blocks needed
+        return allocateBlocks((int) Math.ceil((double) length / blockSize));
+    }
+
+    private int[] allocateBlocks(int blocksNeeded) throws Exception {
+        boolean waitForFrees;
+        metaLock.lock();
+        try {
+            if (blocksNeeded <= freeMap.getFreeCount()) {
+                return freeMap.allocate(blocksNeeded);
             }
+            waitForFrees = blocksNeeded <= freeMap.getFreeCount() + releasing;
+        } finally {
+            metaLock.unlock();
+        }
 
-            // Free old blocks if file had data
-            if (entry.getFirstBlock() >= 0) {
-                freeFileBlocks(entry.getFirstBlock());
+        // Enough blocks are only waiting for their free to commit: commit now instead of failing
+        if (waitForFrees) {
+            flush();
+            metaLock.lock();
+            try {
+                if (blocksNeeded <= freeMap.getFreeCount()) {
+                    return freeMap.allocate(blocksNeeded);
+                }
+            } finally {
+                metaLock.unlock();
             }
+        }
+        throw new Exception("file too large");
+    }
 
-            // Allocate new blocks
-            List<Integer> allocatedBlocks = new ArrayList<>();
-            for (int i = metadataBlocks; i < MAXBLOCKS && allocatedBlocks.size() < blocksNeeded; i++) {
-                if (fileNodes[i].getBlockIndex() < 0) {
-                    allocatedBlocks.add(i);
+    // Copy length bytes from data into the blocks, one device write per run of adjacent blocks, in chunks of at
+    // most STREAM_CHUNK bytes; the last block is zero padded
+    private void fillBlocks(int[] blocks, InputStream data, int length) throws IOException {
+        int blocksPerChunk = Math.max(1, STREAM_CHUNK / blockSize);
+        byte[] chunk = new byte[Math.min(blocks.length, blocksPerChunk) * blockSize];
+        int remaining = length;
+        for (Extent extent : Extent.fromBlocks(blocks)) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block += blocksPerChunk) {
+                int chunkLength = Math.min(blocksPerChunk, extent.getEnd() - block) * blockSize;
+                int bytesToWrite = Math.min(chunkLength, remaining);
+                int read = data.readNBytes(chunk, 0, bytesToWrite);
+                if (read < bytesToWrite) {
+                    throw new IOException("Stream ended after " + (length - remaining + read) + " of " + length
+                            + " bytes");
                 }
+                Arrays.fill(chunk, bytesToWrite, chunkLength, (byte) 0);
+
+                device.writeBlocks(block, chunk, 0, chunkLength);
+
+                remaining -= bytesToWrite;
             }
+        }
+    }
+
+    // Caller holds both locks of the stripe: switch the entry to the new chain and publish the new version.
+    // The old chain is only freed, its blocks are released once the switch is durable.
+    private long commitBlocks(String filename, FileSnapshot snapshot, int[] allocatedBlocks, int length,
+                              boolean flush) throws IOException {
+        int entryIndex = snapshot.getEntryIndex();
+        FEntry entry = fileEntries[entryIndex];
+
+        long commit = 0;
+        metaLock.lock();
+        try {
+            markBlocksFree(snapshot.getBlocks());
 
             // Link blocks
-            for (int i = 0; i < allocatedBlocks.size(); i++) {
-                int blockIdx = allocatedBlocks.get(i);
+            for (int i = 0; i < allocatedBlocks.length; i++) {
+                int blockIdx = allocatedBlocks[i];
                 fileNodes[blockIdx].setBlockIndex(blockIdx); // Mark as used
 
-                if (i < allocatedBlocks.size() - 1) {
-                    fileNodes[blockIdx].setNext(allocatedBlocks.get(i + 1));
+                if (i < allocatedBlocks.length - 1) {
+                    fileNodes[blockIdx].setNext(allocatedBlocks[i + 1]);
                 } else {
                     fileNodes[blockIdx].setNext(-1); // Last block
                 }
+                markBlockDirty(blockIdx);
             }
 
             // Update file entry
-            if (!allocatedBlocks.isEmpty()) {
-                entry.setFirstBlock(allocatedBlocks.get(0).shortValue());
+            entry.setFirstBlock(allocatedBlocks.length > 0 ? allocatedBlocks[0] : -1);
+            entry.setFilesize(length);
+            markEntryDirty(entryIndex);
+
+            // Save metadata
+            if (flush) {
+                commit = flushMetadata();
             }
-            entry.setFilesize((short) data.length);
+        } finally {
+            metaLock.unlock();
+        }
 
-            // Write data to blocks
-            int dataOffset = 0;
-            for (int blockIdx : allocatedBlocks) {
-                int bytesToWrite = Math.min(BLOCK_SIZE, data.length - dataOffset);
-                byte[] blockData = new byte[BLOCK_SIZE];
-                System.arraycopy(data, dataOffset, blockData, 0, bytesToWrite);
+        files.put(filename, new FileSnapshot(entryIndex, length, Extent.fromBlocks(allocatedBlocks),
+                generations.incrementAndGet()));
+        return commit;
+    }
 
-                disk.seek((long) blockIdx * BLOCK_SIZE);
-                disk.write(blockData);
+    // Apply the operations in order while holding every stripe they touch, with one metadata flush at the end.
+    // Each slot of the result is null if that operation succeeded, or the exception it failed with;
+    // a failed operation does not undo the ones before it.
+    public Exception[] applyBatch(List<BatchOperation> operations) throws IOException {
+        // Stripes are always taken in ascending order, so two batches cannot deadlock
+        int[] stripes = new int[operations.size()];
+        for (int i = 0; i < stripes.length; i++) {
+            String filename = operations.get(i).getFilename();
+            stripes[i] = filename == null ? 0 : stripeIndex(filename);
+        }
+        stripes = Arrays.stream(stripes).distinct().sorted().toArray();
 
-                dataOffset += bytesToWrite;
+        long[] stamps = new long[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            writerLocks[stripes[i]].lock();
+            stamps[i] = fileLocks[stripes[i]].writeLock();
+        }
+        Exception[] results = new Exception[operations.size()];
+        long commit;
+        try {
+            for (int i = 0; i < results.length; i++) {
+                BatchOperation operation = operations.get(i);
+                try {
+                    switch (operation.getType()) {
+                        case CREATE:
+                            checkCreateName(operation.getFilename());
+                            createLocked(operation.getFilename(), false);
+                            break;
+                        case WRITE:
+                            checkName(operation.getFilename());
+                            writeLocked(operation.getFilename(), operation.getData(), false);
+                            break;
+                        case DELETE:
+                            checkName(operation.getFilename());
+                            deleteLocked(operation.getFilename(), false);
+                            break;
+                    }
+                } catch (Exception e) {
+                    results[i] = e;
+                }
             }
 
-            // Save metadata
-            saveMetadata();
-
-            return true;
-
-        } catch (Exception e) {
-            // Rollback on error - reload from disk
-            loadFileSystem();
-            throw e;
+            metaLock.lock();
+            try {
+                commit = flushMetadata();
+            } finally {
+                metaLock.unlock();
+            }
         } finally {
-            rwLock.writeLock().unlock();
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                fileLocks[stripes[i]].unlockWrite(stamps[i]);
+                writerLocks[stripes[i]].unlock();
+            }
         }
+        awaitCommit(commit);
+        return results;
     }
 
     public String readFile(String filename) throws Exception {
+        return new String(readFileBytes(filename));
+    }
+
+    public byte[] readFileBytes(String filename) throws Exception {
+        return readFileBytes(filename, 0, Integer.MAX_VALUE);
+    }
+
+    // Up to length bytes starting at offset, fewer if the file ends first; only the blocks holding them are read
+    public byte[] readFileBytes(String filename, int offset, int length) throws Exception {
         if (filename == null || filename.isEmpty()) {
             throw new IllegalArgumentException("Filename cannot be empty");
         }
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length cannot be negative");
+        }
+
+        // Optimistic read: if no writer of this stripe got in between, the snapshot and data agree
+        StampedLock fileLock = fileLock(filename);
+        long stamp = fileLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                byte[] data = readSnapshot(filename, offset, length);
+                if (fileLock.validate(stamp)) {
+                    return data;
+                }
+            } catch (RuntimeException | IOException e) {
+                if (fileLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
 
-        rwLock.readLock().lock();
+        // A writer was active, read again under the lock
+        stamp = fileLock.readLock();
         try {
-            // Find file entry
-            FEntry entry = null;
-            for (int i = 0; i < MAXFILES; i++) {
-                if (fileEntries[i].getFilename().equals(filename)) {
-                    entry = fileEntries[i];
-                    break;
+            return readSnapshot(filename, offset, length);
+        } finally {
+            fileLock.unlockRead(stamp);
+        }
+    }
+
+    // Stream the file in chunks of at most STREAM_CHUNK bytes. The version being read is pinned rather than
+    // locked, so a slow sink holds back nobody: writers go ahead, and its blocks are only reused once it is done.
+    public void readFile(String filename, ChunkSink sink) throws Exception {
+        checkName(filename);
+
+        Pin pin = pin(filename);
+        try {
+            FileSnapshot snapshot = pin.snapshot;
+            sink.size(snapshot.getFilesize());
+
+            // One device read per chunk; a chunk never spans two extents
+            int blocksPerChunk = Math.max(1, STREAM_CHUNK / blockSize);
+            byte[] chunk = new byte[blocksPerChunk * blockSize];
+            int remaining = snapshot.getFilesize();
+            for (Extent extent : snapshot.getExtents()) {
+                for (int block = extent.getStart(); block < extent.getEnd(); block += blocksPerChunk) {
+                    int chunkLength = Math.min(Math.min(blocksPerChunk, extent.getEnd() - block) * blockSize,
+                            remaining);
+                    device.readBlocks(block, chunk, 0, chunkLength);
+                    remaining -= chunkLength;
+                    sink.chunk(chunk, 0, chunkLength);
                 }
             }
+        } finally {
+            unpin(pin);
+        }
+    }
 
-            if (entry == null) {
+    // Pin the current version of filename. The stripe read lock is only held while the pin is registered, so
+    // no writer can free the version's blocks in between; every pin must be given back with unpin.
+    private Pin pin(String filename) {
+        StampedLock fileLock = fileLock(filename);
+        long stamp = fileLock.readLock();
+        try {
+            FileSnapshot snapshot = files.get(filename);
+            if (snapshot == null) {
                 throw new IllegalArgumentException("file " + filename + " does not exist");
             }
-
-            if (entry.getFilesize() == 0) {
-                return "";
+            Pin pin = new Pin(snapshot);
+            metaLock.lock();
+            try {
+                pins.add(pin);
+            } finally {
+                metaLock.unlock();
             }
+            return pin;
+        } finally {
+            fileLock.unlockRead(stamp);
+        }
+    }
 
-            // Read data from blocks
-            byte[] data = new byte[entry.getFilesize()];
-            int dataOffset = 0;
-            int currentBlock = entry.getFirstBlock();
+    // Release a pin; the blocks it held go to another pin still covering them, or back to the free map
+    private void unpin(Pin pin) {
+        int[] ready;
+        metaLock.lock();
+        try {
+            pins.remove(pin);
+            ready = holdPinned(pin.held.stream().toArray());
+        } finally {
+            metaLock.unlock();
+        }
+        recycleBlocks(ready);
+    }
 
-            while (currentBlock >= 0 && dataOffset < entry.getFilesize()) {
-                disk.seek((long) currentBlock * BLOCK_SIZE);
-                int bytesToRead = Math.min(BLOCK_SIZE, entry.getFilesize() - dataOffset);
-                disk.readFully(data, dataOffset, bytesToRead);
+    // Like readFile(filename, sink), but the data goes from the device to target without passing through the
+    // heap, one transfer per extent; sink only gets size(), and must flush anything it buffers
+    // there since target is written directly afterwards. Like readFile, the version is pinned, not locked,
+    // so a target that stops draining holds back nobody.
+    // sendfile only queues references to the disk file's pages, so bytes still queued at unpin would be read
+    // after the blocks were zeroed or reused. The last send buffer's worth is therefore copied: once it is
+    // queued, nothing sent by reference is left in the socket.
+    public void transferFile(String filename, ChunkSink sink, WritableByteChannel target) throws Exception {
+        checkName(filename);
+
+        Pin pin = pin(filename);
+        try {
+            FileSnapshot snapshot = pin.snapshot;
+            sink.size(snapshot.getFilesize());
 
-                dataOffset += bytesToRead;
-                currentBlock = fileNodes[currentBlock].getNext();
+            int copied = (int) Math.min(sendBufferSize(target), snapshot.getFilesize());
+            int sharedBlocks = (snapshot.getFilesize() - copied) / blockSize;
+            for (Extent extent : snapshot.getExtents(0, sharedBlocks)) {
+                device.transferTo(extent.getStart(), extent.getLength() * blockSize, target);
             }
 
-            return new String(data);
-
+            int blocksPerChunk = Math.max(1, STREAM_CHUNK / blockSize);
+            byte[] chunk = new byte[blocksPerChunk * blockSize];
+            int remaining = snapshot.getFilesize() - sharedBlocks * blockSize;
+            for (Extent extent : snapshot.getExtents(sharedBlocks, snapshot.getBlockCount())) {
+                for (int block = extent.getStart(); block < extent.getEnd(); block += blocksPerChunk) {
+                    int chunkLength = Math.min(Math.min(blocksPerChunk, extent.getEnd() - block) * blockSize,
+                            remaining);
+                    device.readBlocks(block, chunk, 0, chunkLength);
+                    remaining -= chunkLength;
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, chunkLength);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                }
+            }
         } finally {
-            rwLock.readLock().unlock();
+            unpin(pin);
         }
     }
 
-    public void deleteFile(String filename) throws Exception {
-        if (filename == null || filename.isEmpty()) {
-            throw new IllegalArgumentException("Filename cannot be empty");
+    // Most bytes target can hold unsent, plus a chunk for what the kernel queues past its limit; 0 unless
+    // target is a socket
+    private static long sendBufferSize(WritableByteChannel target) throws IOException {
+        if (!(target instanceof NetworkChannel)) {
+            return 0;
         }
+        return (long) ((NetworkChannel) target).getOption(StandardSocketOptions.SO_SNDBUF) + STREAM_CHUNK;
+    }
 
-        rwLock.writeLock().lock();
-        try {
-            // Find file entry
-            int entryIndex = -1;
-            for (int i = 0; i < MAXFILES; i++) {
-                if (fileEntries[i].getFilename().equals(filename)) {
-                    entryIndex = i;
-                    break;
+    private byte[] readSnapshot(String filename, int offset, int length) throws IOException {
+        // Find file entry
+        FileSnapshot snapshot = files.get(filename);
+        if (snapshot == null) {
+            throw new IllegalArgumentException("file " + filename + " does not exist");
+        }
+        if (offset > snapshot.getFilesize()) {
+            throw new IllegalArgumentException("offset " + offset + " is outside of " + filename
+                    + " (" + snapshot.getFilesize() + " bytes)");
+        }
+
+        // Read data from the extents the range covers, the first found by binary search, then one read per extent
+        int end = (int) Math.min(snapshot.getFilesize(), (long) offset + length);
+        byte[] data = new byte[end - offset];
+        Extent[] extents = snapshot.getExtents();
+        int index = offset < end ? snapshot.extentIndex(offset / blockSize) : extents.length;
+        byte[] blockData = null;
+        int position = offset;
+        while (position < end) {
+            Extent extent = extents[index];
+            int block = extent.getStart() + position / blockSize - snapshot.getExtentOffset(index);
+            int inBlock = position % blockSize;
+            int bytesToRead;
+            if (inBlock == 0) {
+                bytesToRead = (int) Math.min((long) (extent.getEnd() - block) * blockSize, end - position);
+                device.readBlocks(block, data, position - offset, bytesToRead);
+            } else {
+                // Device reads start at a block boundary, so a range starting mid-block goes through a buffer
+                bytesToRead = Math.min(blockSize - inBlock, end - position);
+                if (blockData == null) {
+                    blockData = new byte[blockSize];
                 }
+                device.readBlock(block, blockData, 0, inBlock + bytesToRead);
+                System.arraycopy(blockData, inBlock, data, position - offset, bytesToRead);
             }
-
-            if (entryIndex == -1) {
-                throw new IllegalArgumentException("file " + filename + " does not exist");
+            position += bytesToRead;
+            if (position / blockSize >= snapshot.getExtentOffset(index) + extent.getLength()) {
+                index++;
             }
+        }
+        return data;
+    }
 
-            FEntry entry = fileEntries[entryIndex];
+    public void deleteFile(String filename) throws Exception {
+        checkName(filename);
 
-            // Free blocks and zero them out
-            if (entry.getFirstBlock() >= 0) {
-                int currentBlock = entry.getFirstBlock();
-                byte[] zeros = new byte[BLOCK_SIZE];
+        ReentrantLock writerLock = writerLock(filename);
+        StampedLock fileLock = fileLock(filename);
+        writerLock.lock();
+        long commit;
+        try {
+            long stamp = fileLock.writeLock();
+            try {
+                commit = deleteLocked(filename, true);
+            } finally {
+                fileLock.unlockWrite(stamp);
+            }
+        } finally {
+            writerLock.unlock();
+        }
+        awaitCommit(commit);
+    }
 
-                while (currentBlock >= 0) {
-                    int nextBlock = fileNodes[currentBlock].getNext();
+    // Caller holds both locks of the file's stripe; flush=false leaves the metadata write to the caller
+    private long deleteLocked(String filename, boolean flush) throws Exception {
+        // Find file entry
+        FileSnapshot snapshot = files.get(filename);
 
-                    // Zero out the block
-                    disk.seek((long) currentBlock * BLOCK_SIZE);
-                    disk.write(zeros);
+        if (snapshot == null) {
+            throw new IllegalArgumentException("file " + filename + " does not exist");
+        }
 
-                    // Mark block as free
-                    fileNodes[currentBlock].setBlockIndex(-currentBlock);
-                    fileNodes[currentBlock].setNext(-1);
+        int entryIndex = snapshot.getEntryIndex();
 
-                    currentBlock = nextBlock;
-                }
-            }
+        long commit = 0;
+        metaLock.lock();
+        try {
+            markBlocksFree(snapshot.getBlocks());
 
             // Clear file entry
-            fileEntries[entryIndex] = new FEntry("", (short) 0, (short) -1);
+            fileEntries[entryIndex] = new FEntry("", 0, -1);
+            freeEntries.addLast(entryIndex);
+            markEntryDirty(entryIndex);
 
             // Save metadata
-            saveMetadata();
+            if (flush) {
+                commit = flushMetadata();
+            }
 
+            files.remove(filename);
+            publishFileList();
         } finally {
-            rwLock.writeLock().unlock();
+            metaLock.unlock();
         }
+        return commit;
+    }
+
+    // Version of a file's content, -1 if it does not exist. Never repeats, even across delete and create
+    public long getGeneration(String filename) {
+        FileSnapshot snapshot = files.get(filename);
+        return snapshot == null ? -1 : snapshot.getGeneration();
     }
 
+    // Names of all files; never blocks, the listing is replaced whenever a file is created or deleted
     public String[] listFiles() throws Exception {
-        rwLock.readLock().lock();
+        return fileList.clone();
+    }
+
+    // Caller holds metaLock, in the same section that unlinks the blocks from their file. They stay taken in the
+    // free map until the flush carrying this change is durable, so no other file can write over data the
+    // durable metadata still points at; releaseFreedBlocks zeroes and frees them then.
+    private void markBlocksFree(int[] blocks) {
+        for (int block : blocks) {
+            // Mark as free
+            fileNodes[block].setBlockIndex(-block);
+            fileNodes[block].setNext(-1);
+            markBlockDirty(block);
+        }
+        if (blocks.length > 0) {
+            freedBlocks.add(blocks);
+            releasing += blocks.length;
+        }
+    }
+
+    // Give back blocks that were allocated but never linked into a file
+    private void releaseBlocks(int[] blocks) {
+        metaLock.lock();
         try {
-            List<String> files = new ArrayList<>();
-            for (int i = 0; i < MAXFILES; i++) {
-                if (!fileEntries[i].getFilename().isEmpty()) {
-                    files.add(fileEntries[i].getFilename());
-                }
+            for (int block : blocks) {
+                freeMap.markFree(block);
             }
-            return files.toArray(new String[0]);
         } finally {
-            rwLock.readLock().unlock();
+            metaLock.unlock();
         }
     }
 
-    private void freeFileBlocks(int firstBlock) throws IOException {
-        int currentBlock = firstBlock;
-        byte[] zeros = new byte[BLOCK_SIZE];
-
-        while (currentBlock >= 0) {
-            int nextBlock = fileNodes[currentBlock].getNext();
-
-            // Zero out the block
-            disk.seek((long) currentBlock * BLOCK_SIZE);
-            disk.write(zeros);
-
-            // Mark as free
-            fileNodes[currentBlock].setBlockIndex(-currentBlock);
-            fileNodes[currentBlock].setNext(-1);
+    // Block cache counters, for sizing fs.cacheBlocks
+    public String getCacheStats() {
+        return device instanceof CachingBlockDevice ? device.toString() : "block cache disabled";
+    }
 
-            currentBlock = nextBlock;
+    // Make every change made so far durable, whatever the durability mode
+    public void flush() throws IOException {
+        metaLock.lock();
+        try {
+            flushMetadata();
+        } finally {
+            metaLock.unlock();
         }
+        committer.sync();
+    }
+
+    // fsync counts and latency of the committer, for choosing fs.durability
+    public String getDurabilityStats() {
+        return committer.toString();
     }
 
     // Close the file system
     public void close() throws IOException {
-        rwLock.writeLock().lock();
+        if (scrubber != null) {
+            scrubberStop.countDown();
+            try {
+                scrubber.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        committer.close();
+
+        metaLock.lock();
         try {
-            if (disk != null) {
-                disk.close();
+            if (device != null) {
+                device.close();
             }
         } finally {
-            rwLock.writeLock().unlock();
+            metaLock.unlock();
         }
     }
 }
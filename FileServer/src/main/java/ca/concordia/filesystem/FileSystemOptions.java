@@ -0,0 +1,189 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.CachePolicy;
+import ca.concordia.filesystem.device.StorageMode;
+
+public class FileSystemOptions {
+
+    // Geometry only applies when a new disk is formatted
+    private int maxFiles = FileSystemManager.DEFAULT_MAXFILES;
+    private int maxBlocks = FileSystemManager.DEFAULT_MAXBLOCKS;
+    private int blockSize = FileSystemManager.DEFAULT_BLOCK_SIZE;
+
+    private StorageMode storageMode = StorageMode.CHANNEL; // positional I/O lets readers run in parallel
+    private Durability durability = Durability.ASYNC;
+    private int flushIntervalMs = 1000;   // ASYNC: how long a change may stay unflushed
+    private int batchDelayMs = 5;         // BATCHED: how long a mutation waits for others to share its fsync
+    private int batchSize = 64;           // BATCHED: mutations that are committed together without waiting longer
+    private boolean journal = true;       // commit metadata through a write-ahead log, replayed on startup
+    private boolean lazyTrim = false;     // freed blocks are only marked free, not zeroed; reads stop at the file size
+    private int scrubIntervalMs = 0;      // lazy trim: pause between zeroing freed blocks in the background, 0 never
+    private int lockStripes = 64;         // file locks, files whose names hash to different stripes run in parallel
+    private int cacheBlocks = 1024;       // block cache capacity, 0 disables the cache
+    private CachePolicy cachePolicy = CachePolicy.LRU;
+
+    // Options from -Dfs.* system properties, falling back to the defaults
+    public static FileSystemOptions fromSystemProperties() {
+        FileSystemOptions options = new FileSystemOptions();
+        options.setMaxFiles(Integer.getInteger("fs.maxFiles", options.getMaxFiles()));
+        options.setMaxBlocks(Integer.getInteger("fs.maxBlocks", options.getMaxBlocks()));
+        options.setBlockSize(Integer.getInteger("fs.blockSize", options.getBlockSize()));
+        options.setStorageMode(StorageMode.valueOf(
+                System.getProperty("fs.storage", options.getStorageMode().name()).toUpperCase()));
+        options.setDurability(Durability.valueOf(
+                System.getProperty("fs.durability", options.getDurability().name()).toUpperCase()));
+        if (Boolean.getBoolean("fs.forceOnWrite")) {
+            options.setForceOnWrite(true);
+        }
+        options.setFlushIntervalMs(Integer.getInteger("fs.flushIntervalMs", options.getFlushIntervalMs()));
+        options.setBatchDelayMs(Integer.getInteger("fs.batchDelayMs", options.getBatchDelayMs()));
+        options.setBatchSize(Integer.getInteger("fs.batchSize", options.getBatchSize()));
+        options.setJournal(Boolean.parseBoolean(System.getProperty("fs.journal", String.valueOf(options.isJournal()))));
+        options.setLazyTrim(Boolean.getBoolean("fs.lazyTrim"));
+        options.setScrubIntervalMs(Integer.getInteger("fs.scrubIntervalMs", options.getScrubIntervalMs()));
+        options.setLockStripes(Integer.getInteger("fs.lockStripes", options.getLockStripes()));
+        options.setCacheBlocks(Integer.getInteger("fs.cacheBlocks", options.getCacheBlocks()));
+        options.setCachePolicy(CachePolicy.valueOf(
+                System.getProperty("fs.cachePolicy", options.getCachePolicy().name()).toUpperCase()));
+        return options;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    public void setMaxBlocks(int maxBlocks) {
+        this.maxBlocks = maxBlocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public void setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    // Older name for SYNC durability
+    public boolean isForceOnWrite() {
+        return durability == Durability.SYNC;
+    }
+
+    public void setForceOnWrite(boolean forceOnWrite) {
+        this.durability = forceOnWrite ? Durability.SYNC : Durability.ASYNC;
+    }
+
+    public int getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public void setFlushIntervalMs(int flushIntervalMs) {
+        if (flushIntervalMs <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive");
+        }
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    public int getBatchDelayMs() {
+        return batchDelayMs;
+    }
+
+    public void setBatchDelayMs(int batchDelayMs) {
+        if (batchDelayMs < 0) {
+            throw new IllegalArgumentException("Batch delay cannot be negative");
+        }
+        this.batchDelayMs = batchDelayMs;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    // Metadata changes become atomic across crashes; each commit costs a second fsync, for the log. Shadow
+    // writes rely on it: without the log, a crash can leave an entry switched to blocks whose nodes never made it
+    public boolean isJournal() {
+        return journal;
+    }
+
+    public void setJournal(boolean journal) {
+        this.journal = journal;
+    }
+
+    // Deletes and overwrites stop paying a write per freed block, and formatting no longer writes the data area
+    public boolean isLazyTrim() {
+        return lazyTrim;
+    }
+
+    public void setLazyTrim(boolean lazyTrim) {
+        this.lazyTrim = lazyTrim;
+    }
+
+    public int getScrubIntervalMs() {
+        return scrubIntervalMs;
+    }
+
+    public void setScrubIntervalMs(int scrubIntervalMs) {
+        if (scrubIntervalMs < 0) {
+            throw new IllegalArgumentException("Scrub interval cannot be negative");
+        }
+        this.scrubIntervalMs = scrubIntervalMs;
+    }
+
+    public int getLockStripes() {
+        return lockStripes;
+    }
+
+    public void setLockStripes(int lockStripes) {
+        if (lockStripes <= 0) {
+            throw new IllegalArgumentException("At least one lock stripe is required");
+        }
+        this.lockStripes = lockStripes;
+    }
+
+    public int getCacheBlocks() {
+        return cacheBlocks;
+    }
+
+    public void setCacheBlocks(int cacheBlocks) {
+        this.cacheBlocks = cacheBlocks;
+    }
+
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+}
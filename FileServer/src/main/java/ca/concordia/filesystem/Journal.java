@@ -0,0 +1,150 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Write-ahead log of metadata pages. Each record is the set of metadata blocks one flush changed, as full block
+// images; the Committer appends a group of records with one write and one fsync, and only then writes the pages
+// to their home location, so a crash leaves either the old or the new metadata. Startup replays whatever
+// reached the log.
+// Data blocks do not go through the log: they are written in place to blocks no committed metadata points at,
+// and the device is flushed before each append so the metadata never becomes durable ahead of its data.
+// Record: magic (4 bytes), sequence (8), page count (4), page numbers (4 each), page images, CRC32 (4)
+class Journal implements Closeable {
+
+    private static final int RECORD_MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int HEADER_SIZE = 16;
+    private static final long CHECKPOINT_BYTES = 16L * 1024 * 1024; // log size that calls for a checkpoint
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private long position; // end of the log
+
+    private Journal(FileChannel channel, int blockSize) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+    }
+
+    // Open the log at path. With replay, committed transactions left by a crash are applied to device first;
+    // without, the log belongs to a disk that was just formatted and whatever it holds is dropped.
+    static Journal open(Path path, BlockDevice device, boolean replay) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (replay) {
+                replay(channel, device);
+            }
+            channel.truncate(0);
+            channel.force(true);
+            return new Journal(channel, device.getBlockSize());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Apply every complete record in order; a torn or corrupt record ends the log, it was never acknowledged
+    private static void replay(FileChannel channel, BlockDevice device) throws IOException {
+        int blockSize = device.getBlockSize();
+        long offset = 0;
+        long sequence = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (true) {
+            header.clear();
+            if (readFully(channel, header, offset) < HEADER_SIZE || header.getInt(0) != RECORD_MAGIC) {
+                break;
+            }
+            long recordSequence = header.getLong(4);
+            int pageCount = header.getInt(12);
+            if (recordSequence <= sequence || pageCount <= 0 || pageCount > device.getBlockCount()) {
+                break;
+            }
+
+            int bodySize = pageCount * (4 + blockSize) + 4;
+            ByteBuffer body = ByteBuffer.allocate(bodySize);
+            if (readFully(channel, body, offset + HEADER_SIZE) < bodySize) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HEADER_SIZE);
+            crc.update(body.array(), 0, bodySize - 4);
+            if ((int) crc.getValue() != body.getInt(bodySize - 4)) {
+                break;
+            }
+
+            int imageStart = pageCount * 4;
+            for (int i = 0; i < pageCount; i++) {
+                int page = body.getInt(i * 4);
+                device.writeBlock(page, body.array(), imageStart + i * blockSize, blockSize);
+            }
+            sequence = recordSequence;
+            offset += HEADER_SIZE + bodySize;
+        }
+        device.flush();
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    // Bytes of one record holding pageCount pages
+    int recordSize(int pageCount) {
+        return HEADER_SIZE + pageCount * (4 + blockSize) + 4;
+    }
+
+    // Encode one record into buffer; images holds the pages' blocks back to back, in page order
+    void encode(ByteBuffer buffer, long sequence, int[] pages, byte[] images) {
+        int start = buffer.position();
+        buffer.putInt(RECORD_MAGIC).putLong(sequence).putInt(pages.length);
+        for (int page : pages) {
+            buffer.putInt(page);
+        }
+        buffer.put(images);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    // Write encoded records at the end of the log; they are durable once force() returns
+    void append(ByteBuffer records) throws IOException {
+        while (records.hasRemaining()) {
+            position += channel.write(records, position);
+        }
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    // Once the records have been applied and the device flushed, the log has nothing left to redo
+    boolean needsCheckpoint() {
+        return position >= CHECKPOINT_BYTES;
+    }
+
+    // Caller has flushed the device after applying every record
+    void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
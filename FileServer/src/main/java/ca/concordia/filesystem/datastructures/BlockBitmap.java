@@ -0,0 +1,141 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.BitSet;
+
+public class BlockBitmap {
+
+    private final int totalBlocks;
+    private final BitSet used;
+    private int freeCount;
+    private int cursor; // next-fit position, where the last allocation stopped
+
+    public BlockBitmap(int totalBlocks) {
+        if (totalBlocks <= 0) {
+            throw new IllegalArgumentException("Bitmap must cover at least one block.");
+        }
+        this.totalBlocks = totalBlocks;
+        this.used = new BitSet(totalBlocks);
+        this.freeCount = totalBlocks;
+        this.cursor = 0;
+    }
+
+    // Rebuild a bitmap from its persisted form
+    public static BlockBitmap fromBytes(byte[] bytes, int totalBlocks) {
+        BlockBitmap bitmap = new BlockBitmap(totalBlocks);
+        BitSet loaded = BitSet.valueOf(bytes);
+        loaded.clear(totalBlocks, Math.max(totalBlocks, loaded.length()));
+        bitmap.used.or(loaded);
+        bitmap.freeCount = totalBlocks - bitmap.used.cardinality();
+        return bitmap;
+    }
+
+    // Persisted form, always byteLength() bytes long
+    public byte[] toBytes() {
+        byte[] bytes = new byte[byteLength()];
+        byte[] set = used.toByteArray();
+        System.arraycopy(set, 0, bytes, 0, set.length);
+        return bytes;
+    }
+
+    // Byte byteIndex of the persisted form, so single changed bytes can be written back
+    public byte byteAt(int byteIndex) {
+        int value = 0;
+        int base = byteIndex * 8;
+        for (int bit = 0; bit < 8 && base + bit < totalBlocks; bit++) {
+            if (used.get(base + bit)) {
+                value |= 1 << bit;
+            }
+        }
+        return (byte) value;
+    }
+
+    public int byteLength() {
+        return byteLength(totalBlocks);
+    }
+
+    public static int byteLength(int totalBlocks) {
+        return (totalBlocks + 7) / 8;
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public boolean isUsed(int block) {
+        return used.get(block);
+    }
+
+    public void markUsed(int block) {
+        if (!used.get(block)) {
+            used.set(block);
+            freeCount--;
+        }
+    }
+
+    public void markFree(int block) {
+        if (used.get(block)) {
+            used.clear(block);
+            freeCount++;
+        }
+    }
+
+    // Allocate count free blocks, as one run of adjacent blocks if there is a long enough one, else gathered
+    // from the next-fit cursor on, wrapping once
+    public int[] allocate(int count) {
+        if (count > freeCount) {
+            throw new IllegalStateException("Not enough free blocks");
+        }
+
+        int[] blocks = new int[count];
+        int run = findRun(count);
+        if (run >= 0) {
+            used.set(run, run + count);
+            for (int i = 0; i < count; i++) {
+                blocks[i] = run + i;
+            }
+            freeCount -= count;
+            cursor = run + count >= totalBlocks ? 0 : run + count;
+            return blocks;
+        }
+
+        int position = cursor;
+        for (int i = 0; i < count; i++) {
+            int block = used.nextClearBit(position);
+            if (block >= totalBlocks) {
+                block = used.nextClearBit(0);
+            }
+            used.set(block);
+            blocks[i] = block;
+            position = block + 1;
+        }
+
+        freeCount -= count;
+        cursor = position >= totalBlocks ? 0 : position;
+        return blocks;
+    }
+
+    // First block of the first run of count free blocks from the cursor on, wrapping once, or -1 if none is
+    // that long; runs are skipped a word of the bitmap at a time
+    private int findRun(int count) {
+        if (count == 0) {
+            return -1;
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            int limit = pass == 0 ? totalBlocks : cursor;
+            int block = used.nextClearBit(pass == 0 ? cursor : 0);
+            while (block < limit) {
+                int end = used.nextSetBit(block);
+                end = end < 0 ? totalBlocks : Math.min(end, totalBlocks);
+                if (end - block >= count) {
+                    return block;
+                }
+                block = used.nextClearBit(end);
+            }
+        }
+        return -1;
+    }
+}
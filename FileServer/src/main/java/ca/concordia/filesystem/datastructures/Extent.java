@@ -0,0 +1,61 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Run of length adjacent data blocks starting at start, read and written with one device call
+public final class Extent {
+
+    private final int start;
+    private final int length;
+
+    public Extent(int start, int length) {
+        if (start < 0 || length <= 0) {
+            throw new IllegalArgumentException("Invalid extent: " + length + " blocks at " + start);
+        }
+        this.start = start;
+        this.length = length;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // One past the last block
+    public int getEnd() {
+        return start + length;
+    }
+
+    // Runs of adjacent blocks in blocks, in the same order
+    public static Extent[] fromBlocks(int[] blocks) {
+        List<Extent> extents = new ArrayList<>();
+        int first = 0;
+        for (int i = 1; i <= blocks.length; i++) {
+            if (i == blocks.length || blocks[i] != blocks[i - 1] + 1) {
+                extents.add(new Extent(blocks[first], i - first));
+                first = i;
+            }
+        }
+        return extents.toArray(new Extent[0]);
+    }
+
+    // The extents one after the other, merging an extent into the one before it when they touch
+    public static Extent[] concat(Extent[]... parts) {
+        List<Extent> extents = new ArrayList<>();
+        for (Extent[] part : parts) {
+            for (Extent extent : part) {
+                Extent last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+                if (last != null && last.getEnd() == extent.getStart()) {
+                    extents.set(extents.size() - 1, new Extent(last.getStart(), last.getLength() + extent.getLength()));
+                } else {
+                    extents.add(extent);
+                }
+            }
+        }
+        return extents.toArray(new Extent[0]);
+    }
+}
@@ -3,10 +3,10 @@ package ca.concordia.filesystem.datastructures;
 public class FEntry {
 
     private String filename;
-    private short filesize;
-    private short firstBlock; // pointer to first node / block
+    private int filesize;
+    private int firstBlock; // pointer to first node / block
 
-    public FEntry(String filename, short filesize, short firstBlock) {
+    public FEntry(String filename, int filesize, int firstBlock) {
         if (filename.length() > 11) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
         }
@@ -26,22 +26,22 @@ public class FEntry {
         this.filename = filename;
     }
 
-    public short getFilesize() {
+    public int getFilesize() {
         return filesize;
     }
 
-    public void setFilesize(short filesize) {
+    public void setFilesize(int filesize) {
         if (filesize < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
         this.filesize = filesize;
     }
 
-    public short getFirstBlock() {
+    public int getFirstBlock() {
         return firstBlock;
     }
 
-    public void setFirstBlock(short firstBlock) {
+    public void setFirstBlock(int firstBlock) {
         this.firstBlock = firstBlock;
     }
 }
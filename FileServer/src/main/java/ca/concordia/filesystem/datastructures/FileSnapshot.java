@@ -0,0 +1,106 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// Immutable view of one file, published by writers so readers never touch FEntry/FNode
+public final class FileSnapshot {
+
+    private final int entryIndex;
+    private final int filesize;
+    private final Extent[] extents; // data blocks in file order, never modified after construction
+    private final int[] extentOffsets; // file block at which each extent starts, for binary search
+    private final int blockCount;
+    private final long generation; // unique per published version, changes on every write
+
+    public FileSnapshot(int entryIndex, int filesize, Extent[] extents, long generation) {
+        this.entryIndex = entryIndex;
+        this.filesize = filesize;
+        this.extents = extents;
+        this.generation = generation;
+
+        extentOffsets = new int[extents.length];
+        int blocks = 0;
+        for (int i = 0; i < extents.length; i++) {
+            extentOffsets[i] = blocks;
+            blocks += extents[i].getLength();
+        }
+        blockCount = blocks;
+    }
+
+    public int getEntryIndex() {
+        return entryIndex;
+    }
+
+    public int getFilesize() {
+        return filesize;
+    }
+
+    public Extent[] getExtents() {
+        return extents;
+    }
+
+    // File block at which extent index starts
+    public int getExtentOffset(int index) {
+        return extentOffsets[index];
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // Index of the extent holding file block fileBlock, in O(log extents)
+    public int extentIndex(int fileBlock) {
+        if (fileBlock < 0 || fileBlock >= blockCount) {
+            throw new IndexOutOfBoundsException("Block " + fileBlock + " of a " + blockCount + " block file");
+        }
+        int index = Arrays.binarySearch(extentOffsets, fileBlock);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    // Device block holding file block fileBlock
+    public int blockAt(int fileBlock) {
+        int index = extentIndex(fileBlock);
+        return extents[index].getStart() + fileBlock - extentOffsets[index];
+    }
+
+    public int[] getBlocks() {
+        return getBlocks(0, blockCount);
+    }
+
+    // Device blocks holding file blocks from (inclusive) to to (exclusive)
+    public int[] getBlocks(int from, int to) {
+        Extent[] range = getExtents(from, to);
+        int[] blocks = new int[Math.max(0, to - from)];
+        int i = 0;
+        for (Extent extent : range) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                blocks[i++] = block;
+            }
+        }
+        return blocks;
+    }
+
+    // Extents covering file blocks from (inclusive) to to (exclusive), the outer ones cut to the range
+    public Extent[] getExtents(int from, int to) {
+        if (from >= to) {
+            return new Extent[0];
+        }
+        int first = extentIndex(from);
+        int last = extentIndex(to - 1);
+        Extent[] range = Arrays.copyOfRange(extents, first, last + 1);
+        int skip = from - extentOffsets[first];
+        int cut = extentOffsets[last] + extents[last].getLength() - to;
+        if (range.length == 1) {
+            range[0] = new Extent(range[0].getStart() + skip, range[0].getLength() - skip - cut);
+        } else {
+            range[0] = new Extent(range[0].getStart() + skip, range[0].getLength() - skip);
+            range[range.length - 1] = new Extent(range[range.length - 1].getStart(),
+                    range[range.length - 1].getLength() - cut);
+        }
+        return range;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+}
@@ -0,0 +1,66 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+
+public class Superblock {
+
+    public static final int MAGIC = 0x46535331; // "FSS1"
+    public static final int VERSION = 2; // 2: 32-bit file sizes in the entry table
+    public static final int SIZE = 20; // magic, version, block size, max files, max blocks
+
+    private final int blockSize;
+    private final int maxFiles;
+    private final int maxBlocks;
+
+    public Superblock(int blockSize, int maxFiles, int maxBlocks) {
+        if (blockSize < SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + SIZE + " bytes.");
+        }
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("Volume must allow at least one file.");
+        }
+        if (maxBlocks <= 0) {
+            throw new IllegalArgumentException("Volume must have at least one block.");
+        }
+        this.blockSize = blockSize;
+        this.maxFiles = maxFiles;
+        this.maxBlocks = maxBlocks;
+    }
+
+    // Decode a superblock, rejecting anything that was not formatted by this file system
+    public static Superblock readFrom(ByteBuffer buffer) {
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        if (magic != MAGIC) {
+            throw new IllegalStateException("Disk is not a formatted file system image");
+        }
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported file system version " + version);
+        }
+        return new Superblock(buffer.getInt(), buffer.getInt(), buffer.getInt());
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(blockSize);
+        buffer.putInt(maxFiles);
+        buffer.putInt(maxBlocks);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    public long getTotalSize() {
+        return (long) maxBlocks * blockSize;
+    }
+}
@@ -0,0 +1,67 @@
+package ca.concordia.filesystem.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public interface BlockDevice extends Closeable {
+
+    int getBlockSize();
+
+    int getBlockCount();
+
+    // Read length bytes of the run of blocks starting at firstBlock; the run may end mid-block
+    void readBlocks(int firstBlock, byte[] dst, int offset, int length) throws IOException;
+
+    // Write length bytes to the run of blocks starting at firstBlock; the run may end mid-block
+    void writeBlocks(int firstBlock, byte[] src, int offset, int length) throws IOException;
+
+    // Send length bytes of the run of blocks starting at firstBlock to target. This default copies through
+    // the heap; devices backed by a file or mapping override it to hand the bytes over without copying.
+    default void transferTo(int firstBlock, int length, WritableByteChannel target) throws IOException {
+        position(firstBlock, length);
+        int blocksPerChunk = Math.max(1, (64 * 1024) / getBlockSize());
+        byte[] chunk = new byte[Math.min(length, blocksPerChunk * getBlockSize())];
+        int sent = 0;
+        while (sent < length) {
+            int count = Math.min(chunk.length, length - sent);
+            readBlocks(firstBlock + sent / getBlockSize(), chunk, 0, count);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            sent += count;
+        }
+    }
+
+    // Make every completed write durable
+    void flush() throws IOException;
+
+    // Hint that a block was freed and its contents will not be read again
+    default void discard(int blockIndex) {
+    }
+
+    default void readBlock(int blockIndex, byte[] dst, int offset, int length) throws IOException {
+        if (length > getBlockSize()) {
+            throw new IllegalArgumentException("Read of " + length + " bytes does not fit in one block");
+        }
+        readBlocks(blockIndex, dst, offset, length);
+    }
+
+    default void writeBlock(int blockIndex, byte[] src, int offset, int length) throws IOException {
+        if (length > getBlockSize()) {
+            throw new IllegalArgumentException("Write of " + length + " bytes does not fit in one block");
+        }
+        writeBlocks(blockIndex, src, offset, length);
+    }
+
+    // Byte position of blockIndex, after checking that length bytes from there stay on the device
+    default long position(int blockIndex, int length) {
+        long position = (long) blockIndex * getBlockSize();
+        if (blockIndex < 0 || length < 0 || position + length > (long) getBlockCount() * getBlockSize()) {
+            throw new IndexOutOfBoundsException("Access outside of device: block " + blockIndex + ", " + length + " bytes");
+        }
+        return position;
+    }
+}
@@ -0,0 +1,6 @@
+package ca.concordia.filesystem.device;
+
+public enum CachePolicy {
+    LRU,  // evict the least recently used block
+    CLOCK // second chance: evict the first block not referenced since the hand last passed it
+}
@@ -0,0 +1,329 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CachingBlockDevice implements BlockDevice {
+
+    private static final int GENERATION_STRIPES = 1024;
+    // Reads of at least this many bytes go straight to the delegate, so streaming a large file neither costs a
+    // delegate call per block nor pushes the metadata and small hot files out of the cache
+    private static final int BYPASS_BYTES = 64 * 1024;
+
+    private final BlockDevice delegate;
+    private final CachePolicy policy;
+    private final int capacity;
+    private final int blockSize;
+
+    // Cache slots, guarded by lock. Block contents are only copied in and out while it is held
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, Integer> slotOf = new HashMap<>(); // block -> slot
+    private final int[] slotBlock;
+    private final byte[][] slotData;
+    private final int[] newer;          // LRU list links, head is the most recently used slot
+    private final int[] older;
+    private int head = -1;
+    private int tail = -1;
+    private final boolean[] referenced; // CLOCK reference bits
+    private int hand;
+    private int used;
+
+    // Bumped on every write, so a miss that raced with a write does not cache stale data
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+
+    public CachingBlockDevice(BlockDevice delegate, int capacity, CachePolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        this.delegate = delegate;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.blockSize = delegate.getBlockSize();
+        this.slotBlock = new int[capacity];
+        this.slotData = new byte[capacity][];
+        this.newer = new int[capacity];
+        this.older = new int[capacity];
+        this.referenced = new boolean[capacity];
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return delegate.getBlockCount();
+    }
+
+    @Override
+    public void readBlocks(int firstBlock, byte[] dst, int offset, int length) throws IOException {
+        position(firstBlock, length);
+        if (length >= BYPASS_BYTES) {
+            bypassed.increment();
+            delegate.readBlocks(firstBlock, dst, offset, length);
+            return;
+        }
+
+        // Copy the cached blocks in one pass under the lock, noting the generation of each missing one
+        int blocks = (length + blockSize - 1) / blockSize;
+        boolean[] missing = new boolean[blocks];
+        long[] missGenerations = new long[blocks];
+        int missCount = 0;
+        lock.lock();
+        try {
+            for (int i = 0; i < blocks; i++) {
+                Integer slot = slotOf.get(firstBlock + i);
+                if (slot != null) {
+                    System.arraycopy(slotData[slot], 0, dst, offset + i * blockSize,
+                            Math.min(blockSize, length - i * blockSize));
+                    touch(slot);
+                } else {
+                    missing[i] = true;
+                    missGenerations[i] = generations[(firstBlock + i) % GENERATION_STRIPES];
+                    missCount++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        hits.add(blocks - missCount);
+        misses.add(missCount);
+
+        // One delegate read per run of adjacent missing blocks
+        int i = 0;
+        while (i < blocks) {
+            if (!missing[i]) {
+                i++;
+                continue;
+            }
+            int end = i;
+            while (end < blocks && missing[end]) {
+                end++;
+            }
+            readRun(firstBlock + i, end - i, dst, offset + i * blockSize,
+                    Math.min((end - i) * blockSize, length - i * blockSize), missGenerations, i);
+            i = end;
+        }
+    }
+
+    // Write-through: the delegate is written first, then any cached copy is updated in place
+    @Override
+    public void writeBlocks(int firstBlock, byte[] src, int offset, int length) throws IOException {
+        delegate.writeBlocks(firstBlock, src, offset, length);
+
+        lock.lock();
+        try {
+            int block = firstBlock;
+            while (length > 0) {
+                int count = Math.min(length, blockSize);
+                generations[block % GENERATION_STRIPES]++;
+                Integer slot = slotOf.get(block);
+                if (slot != null) {
+                    System.arraycopy(src, offset, slotData[slot], 0, count);
+                }
+                block++;
+                offset += count;
+                length -= count;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drop a block whose contents are no longer needed, e.g. after its file was deleted
+    @Override
+    public void discard(int blockIndex) {
+        lock.lock();
+        try {
+            generations[blockIndex % GENERATION_STRIPES]++;
+            Integer slot = slotOf.remove(blockIndex);
+            if (slot != null) {
+                removeSlot(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+        delegate.discard(blockIndex);
+    }
+
+    // Write-through keeps the delegate current, so transfers go straight to it and leave the cache alone
+    @Override
+    public void transferTo(int firstBlock, int length, WritableByteChannel target) throws IOException {
+        delegate.transferTo(firstBlock, length, target);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // Reads large enough to skip the cache, see BYPASS_BYTES
+    public long getBypassed() {
+        return bypassed.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        return String.format("block cache %s %d/%d blocks, hits=%d misses=%d evictions=%d bypassed=%d hit rate=%.1f%%",
+                policy, used, capacity, hitCount, getMisses(), getEvictions(), getBypassed(),
+                total == 0 ? 0.0 : hitCount * 100.0 / total);
+    }
+
+    // Read count whole blocks from the delegate in one call, copy length bytes of them to dst and cache each
+    // block that was not written since seen[from + i] was taken
+    private void readRun(int first, int count, byte[] dst, int offset, int length, long[] seen, int from)
+            throws IOException {
+        byte[] data = new byte[count * blockSize];
+        delegate.readBlocks(first, data, 0, data.length);
+        System.arraycopy(data, 0, dst, offset, length);
+
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                int block = first + i;
+                if (generations[block % GENERATION_STRIPES] == seen[from + i] && !slotOf.containsKey(block)) {
+                    insert(block, Arrays.copyOfRange(data, i * blockSize, (i + 1) * blockSize));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void insert(int block, byte[] data) {
+        int slot;
+        if (used < capacity) {
+            slot = used++;
+        } else {
+            slot = victim();
+            slotOf.remove(slotBlock[slot]);
+            unlink(slot);
+            evictions.increment();
+        }
+
+        slotBlock[slot] = block;
+        slotData[slot] = data;
+        slotOf.put(block, slot);
+        referenced[slot] = false;
+        linkAtHead(slot);
+    }
+
+    private int victim() {
+        if (policy == CachePolicy.LRU) {
+            return tail;
+        }
+        // Give referenced blocks a second chance, clearing their bit as the hand passes
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % capacity;
+        }
+        int slot = hand;
+        hand = (hand + 1) % capacity;
+        return slot;
+    }
+
+    private void touch(int slot) {
+        if (policy == CachePolicy.LRU) {
+            unlink(slot);
+            linkAtHead(slot);
+        } else {
+            referenced[slot] = true;
+        }
+    }
+
+    // Move the last used slot into the freed one, so slots 0..used-1 stay occupied
+    private void removeSlot(int slot) {
+        unlink(slot);
+        int last = --used;
+        if (slot != last) {
+            boolean wasHead = head == last;
+            int lastNewer = newer[last];
+            int lastOlder = older[last];
+            unlink(last);
+            slotBlock[slot] = slotBlock[last];
+            slotData[slot] = slotData[last];
+            referenced[slot] = referenced[last];
+            slotOf.put(slotBlock[slot], slot);
+            relink(slot, lastNewer, lastOlder, wasHead);
+        }
+        slotData[last] = null;
+        if (hand >= used) {
+            hand = 0;
+        }
+    }
+
+    private void linkAtHead(int slot) {
+        newer[slot] = -1;
+        older[slot] = head;
+        if (head >= 0) {
+            newer[head] = slot;
+        }
+        head = slot;
+        if (tail < 0) {
+            tail = slot;
+        }
+    }
+
+    // Put slot back between the neighbours a moved slot had
+    private void relink(int slot, int newerSlot, int olderSlot, boolean atHead) {
+        if (atHead || newerSlot < 0) {
+            linkAtHead(slot);
+            return;
+        }
+        newer[slot] = newerSlot;
+        older[slot] = olderSlot;
+        older[newerSlot] = slot;
+        if (olderSlot >= 0) {
+            newer[olderSlot] = slot;
+        } else {
+            tail = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        int n = newer[slot];
+        int o = older[slot];
+        if (n >= 0) {
+            older[n] = o;
+        } else if (head == slot) {
+            head = o;
+        }
+        if (o >= 0) {
+            newer[o] = n;
+        } else if (tail == slot) {
+            tail = n;
+        }
+        newer[slot] = -1;
+        older[slot] = -1;
+    }
+}
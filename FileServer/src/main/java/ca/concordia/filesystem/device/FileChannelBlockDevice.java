@@ -0,0 +1,82 @@
+package ca.concordia.filesystem.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class FileChannelBlockDevice implements BlockDevice {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final int blockCount;
+
+    public FileChannelBlockDevice(String filename, int blockSize, int blockCount) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        if (file.length() < (long) blockSize * blockCount) {
+            file.setLength((long) blockSize * blockCount);
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // Positional reads and writes do not move the channel position, so they need no locking
+    @Override
+    public void readBlocks(int firstBlock, byte[] dst, int offset, int length) throws IOException {
+        long position = position(firstBlock, length);
+        ByteBuffer buffer = ByteBuffer.wrap(dst, offset, length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position() - offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of disk at block " + firstBlock);
+            }
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, byte[] src, int offset, int length) throws IOException {
+        long position = position(firstBlock, length);
+        ByteBuffer buffer = ByteBuffer.wrap(src, offset, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - offset);
+        }
+    }
+
+    // The kernel moves the bytes from the page cache to the socket (sendfile), they never enter the heap
+    @Override
+    public void transferTo(int firstBlock, int length, WritableByteChannel target) throws IOException {
+        long position = position(firstBlock, length);
+        long sent = 0;
+        while (sent < length) {
+            long count = channel.transferTo(position + sent, length - sent, target);
+            if (count <= 0 && position + sent >= channel.size()) {
+                throw new EOFException("Unexpected end of disk at block " + firstBlock);
+            }
+            sent += count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
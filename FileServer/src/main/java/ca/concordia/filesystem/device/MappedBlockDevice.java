@@ -0,0 +1,108 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class MappedBlockDevice implements BlockDevice {
+
+    // A single mapping is limited to 2 GiB, so larger disks are mapped as several segments
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final int blockSize;
+    private final int blockCount;
+
+    public MappedBlockDevice(String filename, int blockSize, int blockCount) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+
+        // Size the file before mapping it, a mapping cannot grow with the file
+        long size = (long) blockSize * blockCount;
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+
+        int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * SEGMENT_SIZE;
+            segments[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // Absolute get/put never touch the buffer position, so concurrent readers do not interfere
+    @Override
+    public void readBlocks(int firstBlock, byte[] dst, int offset, int length) {
+        long position = position(firstBlock, length);
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            int segmentOffset = (int) (position % SEGMENT_SIZE);
+            int count = Math.min(length, segment.capacity() - segmentOffset);
+            segment.get(segmentOffset, dst, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, byte[] src, int offset, int length) {
+        long position = position(firstBlock, length);
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            int segmentOffset = (int) (position % SEGMENT_SIZE);
+            int count = Math.min(length, segment.capacity() - segmentOffset);
+            segment.put(segmentOffset, src, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Writes straight out of the mapping; a slice is a view, so the bytes are never copied to the heap
+    @Override
+    public void transferTo(int firstBlock, int length, WritableByteChannel target) throws IOException {
+        long position = position(firstBlock, length);
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            int segmentOffset = (int) (position % SEGMENT_SIZE);
+            int count = Math.min(length, segment.capacity() - segmentOffset);
+            ByteBuffer slice = segment.slice(segmentOffset, count);
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+            position += count;
+            length -= count;
+        }
+    }
+
+    // Write dirty pages of every segment back to the disk file
+    @Override
+    public void flush() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+}
@@ -0,0 +1,72 @@
+package ca.concordia.filesystem.device;
+
+import java.util.Arrays;
+
+public class MemoryBlockDevice implements BlockDevice {
+
+    private final int blockSize;
+    private final int blockCount;
+    private final byte[][] blocks; // allocated on first write, a missing block reads as zeros
+
+    public MemoryBlockDevice(int blockSize, int blockCount) {
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.blocks = new byte[blockCount][];
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public void readBlocks(int firstBlock, byte[] dst, int offset, int length) {
+        position(firstBlock, length);
+        int block = firstBlock;
+        while (length > 0) {
+            int count = Math.min(length, blockSize);
+            byte[] data = blocks[block];
+            if (data == null) {
+                Arrays.fill(dst, offset, offset + count, (byte) 0);
+            } else {
+                System.arraycopy(data, 0, dst, offset, count);
+            }
+            block++;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, byte[] src, int offset, int length) {
+        position(firstBlock, length);
+        int block = firstBlock;
+        while (length > 0) {
+            int count = Math.min(length, blockSize);
+            byte[] data = blocks[block];
+            if (data == null) {
+                data = new byte[blockSize];
+                blocks[block] = data;
+            }
+            System.arraycopy(src, offset, data, 0, count);
+            block++;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to make durable
+    }
+
+    @Override
+    public void close() {
+        // Contents are dropped with the device
+    }
+}
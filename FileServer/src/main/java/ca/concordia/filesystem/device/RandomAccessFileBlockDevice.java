@@ -0,0 +1,65 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RandomAccessFileBlockDevice implements BlockDevice {
+
+    private final RandomAccessFile file;
+    private final int blockSize;
+    private final int blockCount;
+    private final ReentrantLock lock = new ReentrantLock(); // not a monitor, so blocked virtual threads release their carrier
+
+    public RandomAccessFileBlockDevice(String filename, int blockSize, int blockCount) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        if (file.length() < (long) blockSize * blockCount) {
+            file.setLength((long) blockSize * blockCount);
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // seek and read share one file pointer, so every access holds the device lock
+    @Override
+    public void readBlocks(int firstBlock, byte[] dst, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            file.seek(position(firstBlock, length));
+            file.readFully(dst, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, byte[] src, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            file.seek(position(firstBlock, length));
+            file.write(src, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        file.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,45 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+
+public enum StorageMode {
+    // RandomAccessFile seek + read/write, serialized on the shared file pointer
+    FILE {
+        @Override
+        public BlockDevice open(String filename, int blockSize, int blockCount) throws IOException {
+            return new RandomAccessFileBlockDevice(filename, blockSize, blockCount);
+        }
+    },
+    // FileChannel positional reads and writes
+    CHANNEL {
+        @Override
+        public BlockDevice open(String filename, int blockSize, int blockCount) throws IOException {
+            return new FileChannelBlockDevice(filename, blockSize, blockCount);
+        }
+    },
+    // Disk image mapped into memory, block I/O is a memory copy
+    MAPPED {
+        @Override
+        public BlockDevice open(String filename, int blockSize, int blockCount) throws IOException {
+            return new MappedBlockDevice(filename, blockSize, blockCount);
+        }
+    },
+    // Volatile in-memory disk for benchmarks, nothing is read from or written to filename
+    MEMORY {
+        @Override
+        public BlockDevice open(String filename, int blockSize, int blockCount) {
+            return new MemoryBlockDevice(blockSize, blockCount);
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return false;
+        }
+    };
+
+    public abstract BlockDevice open(String filename, int blockSize, int blockCount) throws IOException;
+
+    public boolean isPersistent() {
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package ca.concordia.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed frames, entered by sending the text line BINARY and getting "OK: binary" back.
+// Request:  opcode (1 byte), filename length (2 bytes), payload length (4 bytes), filename (UTF-8), payload
+// Response: status (1 byte), payload length (4 bytes), payload
+// READ answers with the raw file bytes, LIST with the names separated by '\n', errors with the message.
+// WRITE and READ payloads are streamed between the socket and the disk, never held whole in memory.
+public class BinaryProtocol {
+
+    public static final String HANDSHAKE = "BINARY";
+    public static final String HANDSHAKE_OK = "OK: binary";
+
+    public static final byte OP_EXIT = 0;
+    public static final byte OP_CREATE = 1;
+    public static final byte OP_WRITE = 2;
+    public static final byte OP_READ = 3;
+    public static final byte OP_DELETE = 4;
+    public static final byte OP_LIST = 5;
+    public static final byte OP_STATS = 6;
+    public static final byte OP_SYNC = 7;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    public static class Request {
+        public final byte opcode;
+        public final String filename;
+        public final long payloadLength; // the payload itself is still on the stream
+
+        Request(byte opcode, String filename, long payloadLength) {
+            this.opcode = opcode;
+            this.filename = filename;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    public static class Response {
+        public final byte status;
+        public final byte[] payload;
+
+        public Response(byte status, byte[] payload) {
+            this.status = status;
+            this.payload = payload;
+        }
+
+        public static Response ok(byte[] payload) {
+            return new Response(STATUS_OK, payload);
+        }
+
+        public static Response ok(String message) {
+            return new Response(STATUS_OK, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public static Response error(String message) {
+            return new Response(STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Header and filename of the next request, or null if the client closed the connection between frames;
+    // the caller consumes (or skips) the payload
+    public static Request readRequest(DataInputStream in) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        int nameLength = in.readUnsignedShort();
+        long payloadLength = Integer.toUnsignedLong(in.readInt());
+
+        byte[] name = new byte[nameLength];
+        in.readFully(name);
+        return new Request((byte) opcode, new String(name, StandardCharsets.UTF_8), payloadLength);
+    }
+
+    public static void writeResponse(DataOutputStream out, Response response) throws IOException {
+        writeHeader(out, response.status, response.payload.length);
+        out.write(response.payload);
+    }
+
+    // Start of a response whose payload the caller writes itself
+    public static void writeHeader(DataOutputStream out, byte status, int payloadLength) throws IOException {
+        out.writeByte(status);
+        out.writeInt(payloadLength);
+    }
+}
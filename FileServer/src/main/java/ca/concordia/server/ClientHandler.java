@@ -1,38 +1,90 @@
 package ca.concordia.server;
 
-import ca.concordia.filesystem.FileSystemManager;
-
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ClientHandler implements Runnable {
 
     private Socket clientSocket;
-    private BufferedReader in;
+    private final CommandProcessor processor;
+    private final int maxBatch; // responses held back before a flush is forced
+    private BufferedInputStream in; // raw bytes, so the connection can switch to binary frames mid-stream
+    private BufferedOutputStream rawOut; // under out, for file bytes that must not pass through a charset
     private PrintWriter out;
 
-    public ClientHandler(Socket clientSocket) {
+    public ClientHandler(Socket clientSocket, CommandProcessor processor, int maxBatch) {
         this.clientSocket = clientSocket;
+        this.processor = processor;
+        this.maxBatch = maxBatch;
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            in = new BufferedInputStream(clientSocket.getInputStream());
+            // No autoflush: responses to pipelined commands go out together
+            rawOut = new BufferedOutputStream(clientSocket.getOutputStream());
+            out = new PrintWriter(new OutputStreamWriter(rawOut));
 
             String line;
-            while ((line = in.readLine()) != null) {
+            int batched = 0;
+            while ((line = readLine()) != null) {
                 line = line.trim();
                 System.out.println("Received from client: " + line);
 
                 if (line.equalsIgnoreCase("exit")) {
+                    out.flush(); // answers still batched must go out before the socket closes
                     break;
                 }
 
-                String response = processCommand(line);
+                if (line.equalsIgnoreCase(BinaryProtocol.HANDSHAKE)) {
+                    out.println(BinaryProtocol.HANDSHAKE_OK);
+                    out.flush();
+                    System.out.println("Switched client to binary frames");
+                    runBinary();
+                    break;
+                }
+
+                if (CommandProcessor.isStreamCommand(line)) {
+                    processor.processStream(line, in, out, rawOut, clientSocket.getChannel());
+                    out.flush();
+                    batched = 0;
+                    System.out.println("Finished stream for client");
+                    continue;
+                }
+
+                String response;
+                int batchLength = CommandProcessor.batchLength(line);
+                if (batchLength >= 0) {
+                    // The operations follow as the next lines and are applied together; a refused batch's lines
+                    // are read and dropped, so the next command is still found where the client put it
+                    boolean accepted = CommandProcessor.acceptsBatch(batchLength);
+                    List<String> operations = new ArrayList<>();
+                    int read = 0;
+                    String operation;
+                    while (read < batchLength && (operation = readLine()) != null) {
+                        if (accepted) {
+                            operations.add(operation.trim());
+                        }
+                        read++;
+                    }
+                    if (read < batchLength) {
+                        break;
+                    }
+                    response = accepted ? processor.processBatch(operations) : CommandProcessor.BATCH_REFUSED;
+                } else {
+                    response = processor.process(line);
+                }
                 out.println(response);
                 System.out.println("Sent to client: " + response);
+
+                // Flush once the client has nothing more buffered, or the batch hits the in-flight limit
+                if (++batched >= maxBatch || in.available() == 0) {
+                    out.flush();
+                    batched = 0;
+                }
             }
 
         } catch (IOException e) {
@@ -42,103 +94,38 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private String processCommand(String line) {
-        String[] parts = line.split(" ", 3);
-        String command = parts[0].toUpperCase();
+    // Same pipelining as the text loop, but no line splitting and no String payloads
+    private void runBinary() throws IOException {
+        DataInputStream frames = new DataInputStream(in);
+        DataOutputStream replies = new DataOutputStream(rawOut);
 
-        try {
-            switch (command) {
-                case "CREATE":
-                    return handleCreate(parts);
-                case "WRITE":
-                    return handleWrite(parts);
-                case "READ":
-                    return handleRead(parts);
-                case "DELETE":
-                    return handleDelete(parts);
-                case "LIST":
-                    return handleList(parts);
-                default:
-                    return "ERROR: Unknown command: " + command;
+        int batched = 0;
+        BinaryProtocol.Request request;
+        while ((request = BinaryProtocol.readRequest(frames)) != null) {
+            if (request.opcode == BinaryProtocol.OP_EXIT) {
+                break;
             }
-        } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
-        }
-    }
 
-    private String handleCreate(String[] parts) {
-        if (parts.length < 2) {
-            return "ERROR: CREATE requires a filename";
-        }
-
-        try {
-            FileSystemManager fsm = FileSystemManager.getInstance("filesystem.dat", 1280);
-            fsm.createFile(parts[1]);
-            return "OK: File created";
-        } catch (IllegalArgumentException | IllegalStateException e) {
-            return "ERROR: " + e.getMessage();
-        } catch (Exception e) {
-            return "ERROR: Could not create file";
-        }
-    }
-
-    private String handleWrite(String[] parts) {
-        if (parts.length < 3) {
-            return "ERROR: WRITE requires filename and content";
-        }
-
-        try {
-            FileSystemManager fsm = FileSystemManager.getInstance("filesystem.dat", 1280);
-            boolean success = fsm.writeFile(parts[1], parts[2]);
-            return success ? "OK: Content written" : "ERROR: Could not write to file";
-        } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
-        }
-    }
-
-    private String handleRead(String[] parts) {
-        if (parts.length < 2) {
-            return "ERROR: READ requires a filename";
-        }
-
-        try {
-            FileSystemManager fsm = FileSystemManager.getInstance("filesystem.dat", 1280);
-            String content = fsm.readFile(parts[1]);
-            return (content != null) ? content : "ERROR: Could not read file";
-        } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
+            processor.process(request, frames, replies, clientSocket.getChannel());
+            if (++batched >= maxBatch || in.available() == 0) {
+                replies.flush();
+                batched = 0;
+            }
         }
+        replies.flush();
     }
 
-    private String handleDelete(String[] parts) {
-        if (parts.length < 2) {
-            return "ERROR: DELETE requires a filename";
+    // One text line from the byte stream, without reading past it; null at end of stream
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
         }
-
-        try {
-            FileSystemManager fsm = FileSystemManager.getInstance("filesystem.dat", 1280);
-            fsm.deleteFile(parts[1]);
-            return "OK: File deleted";
-        } catch (IllegalArgumentException e) {
-            return "ERROR: " + e.getMessage();
-        } catch (Exception e) {
-            return "ERROR: Could not delete file";
-        }
-    }
-
-    private String handleList(String[] parts) {
-        try {
-            FileSystemManager fsm = FileSystemManager.getInstance("filesystem.dat", 1280);
-            String[] files = fsm.listFiles();
-
-            if (files == null || files.length == 0) {
-                return "No files";
-            }
-
-            return String.join(", ", files);
-        } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
+        if (b == -1 && line.size() == 0) {
+            return null;
         }
+        return line.toString().replace("\r", "");
     }
 
     private void closeResources() {
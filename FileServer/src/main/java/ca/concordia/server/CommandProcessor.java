@@ -0,0 +1,462 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.BatchOperation;
+import ca.concordia.filesystem.ChunkSink;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.server.BinaryProtocol.Request;
+import ca.concordia.server.BinaryProtocol.Response;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Protocol commands, shared by every connection whatever the server mode
+public class CommandProcessor {
+
+    public static final String BUSY = "ERROR: server busy"; // sent instead of running a command when overloaded
+    public static final int MAX_BATCH = 1024; // operation lines allowed after one BATCH header
+    public static final String BATCH_REFUSED = "ERROR: BATCH takes 1 to " + MAX_BATCH + " operations";
+
+    private final FileSystemManager fsm;
+    private final FileContentCache readCache;
+
+    public CommandProcessor(FileSystemManager fsm, FileContentCache readCache) {
+        this.fsm = fsm;
+        this.readCache = readCache;
+    }
+
+    // Apply one protocol line and return the response line
+    public String process(String line) {
+        String[] parts = line.split(" ", 3);
+        String command = parts[0].toUpperCase();
+
+        try {
+            switch (command) {
+                case "CREATE":
+                    return handleCreate(parts);
+                case "WRITE":
+                    return handleWrite(parts);
+                case "READ":
+                    return handleRead(parts);
+                case "READRANGE":
+                    return handleReadRange(parts);
+                case "WRITEAT":
+                    return handleWriteAt(parts);
+                case "APPEND":
+                    return handleAppend(parts);
+                case "DELETE":
+                    return handleDelete(parts);
+                case "LIST":
+                    return handleList(parts);
+                case "STATS":
+                    return "OK: " + fsm.getCacheStats() + "; " + readCache + "; " + fsm.getDurabilityStats();
+                case "SYNC":
+                    fsm.flush();
+                    return "OK: Changes flushed";
+                case "READSTREAM":
+                case "WRITESTREAM":
+                    return "ERROR: " + command + " needs a thread-mode connection";
+                default:
+                    return "ERROR: Unknown command: " + command;
+            }
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    // Operation lines following a "BATCH n" header, or -1 if line is not a batch header. Any number makes a
+    // header, so the lines of a batch that is refused as a whole (see acceptsBatch) still come off the stream
+    public static int batchLength(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length != 2 || !parts[0].equalsIgnoreCase("BATCH")) {
+            return -1;
+        }
+        try {
+            return Math.max(Integer.parseInt(parts[1]), 0);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Whether a batch of count operations is applied; any other batch is answered with BATCH_REFUSED alone
+    // and none of its lines run
+    public static boolean acceptsBatch(int count) {
+        return count >= 1 && count <= MAX_BATCH;
+    }
+
+    // Apply the lines of one BATCH together; the reply is "OK: BATCH n" followed by one result line per operation
+    public String processBatch(List<String> lines) {
+        if (!acceptsBatch(lines.size())) {
+            return BATCH_REFUSED;
+        }
+        String[] results = new String[lines.size()];
+        List<BatchOperation> operations = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+
+        for (int i = 0; i < lines.size(); i++) {
+            String[] parts = lines.get(i).split(" ", 3);
+            String command = parts[0].toUpperCase();
+            if (command.equals("CREATE") && parts.length >= 2) {
+                operations.add(BatchOperation.create(parts[1]));
+            } else if (command.equals("WRITE") && parts.length >= 3) {
+                operations.add(BatchOperation.write(parts[1], parts[2].getBytes()));
+            } else if (command.equals("DELETE") && parts.length >= 2) {
+                operations.add(BatchOperation.delete(parts[1]));
+            } else {
+                results[i] = "ERROR: BATCH takes CREATE <file>, WRITE <file> <content> or DELETE <file>";
+                continue;
+            }
+            slots.add(i);
+        }
+
+        Exception[] failures;
+        try {
+            failures = fsm.applyBatch(operations);
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+
+        for (int j = 0; j < operations.size(); j++) {
+            results[slots.get(j)] = batchResult(operations.get(j).getType(), failures[j]);
+        }
+
+        StringBuilder reply = new StringBuilder("OK: BATCH ").append(results.length);
+        for (String result : results) {
+            reply.append(System.lineSeparator()).append(result);
+        }
+        return reply.toString();
+    }
+
+    // Same wording as the single CREATE, WRITE and DELETE replies
+    private static String batchResult(BatchOperation.Type type, Exception failure) {
+        switch (type) {
+            case CREATE:
+                if (failure == null) {
+                    return "OK: File created";
+                }
+                return failure instanceof IllegalArgumentException || failure instanceof IllegalStateException
+                        ? "ERROR: " + failure.getMessage() : "ERROR: Could not create file";
+            case WRITE:
+                return failure == null ? "OK: Content written" : "ERROR: " + failure.getMessage();
+            default:
+                if (failure == null) {
+                    return "OK: File deleted";
+                }
+                return failure instanceof IllegalArgumentException
+                        ? "ERROR: " + failure.getMessage() : "ERROR: Could not delete file";
+        }
+    }
+
+    // Largest payload worth reading off the wire: anything bigger could never fit on the volume, or is past the
+    // int file size an FEntry holds. Lengths are checked against it before they are narrowed to int.
+    public long getMaxPayload() {
+        return Math.min((long) fsm.getMaxBlocks() * fsm.getBlockSize(), Integer.MAX_VALUE);
+    }
+
+    // Apply one binary frame and write its response. WRITE payloads go from the socket to the disk and READ
+    // payloads from the disk to the socket a chunk at a time, or with no copy at all when channel (the
+    // connection's socket channel, may be null) is given. IOException means the connection is unusable.
+    public void process(Request request, DataInputStream in, DataOutputStream out, WritableByteChannel channel)
+            throws IOException {
+        PayloadInputStream payload = new PayloadInputStream(in, request.payloadLength);
+        Response response;
+        try {
+            switch (request.opcode) {
+                case BinaryProtocol.OP_CREATE:
+                    fsm.createFile(request.filename);
+                    response = Response.ok("File created");
+                    break;
+                case BinaryProtocol.OP_WRITE:
+                    if (request.payloadLength > getMaxPayload()) {
+                        response = Response.error("file too large");
+                        break;
+                    }
+                    fsm.writeFile(request.filename, payload, (int) request.payloadLength);
+                    response = Response.ok("Content written");
+                    break;
+                case BinaryProtocol.OP_READ:
+                    StreamingSink sink = new StreamingSink() {
+                        @Override
+                        void begin(int filesize) throws IOException {
+                            BinaryProtocol.writeHeader(out, BinaryProtocol.STATUS_OK, filesize);
+                            out.flush();
+                        }
+
+                        @Override
+                        public void chunk(byte[] data, int offset, int length) throws IOException {
+                            out.write(data, offset, length);
+                        }
+                    };
+                    if (streamRead(request.filename, sink, channel) == null) {
+                        return;
+                    }
+                    response = Response.error(sink.error);
+                    break;
+                case BinaryProtocol.OP_DELETE:
+                    fsm.deleteFile(request.filename);
+                    response = Response.ok("File deleted");
+                    break;
+                case BinaryProtocol.OP_LIST:
+                    response = Response.ok(String.join("\n", fsm.listFiles()));
+                    break;
+                case BinaryProtocol.OP_STATS:
+                    response = Response.ok(fsm.getCacheStats() + "; " + readCache + "; " + fsm.getDurabilityStats());
+                    break;
+                case BinaryProtocol.OP_SYNC:
+                    fsm.flush();
+                    response = Response.ok("Changes flushed");
+                    break;
+                default:
+                    response = Response.error("Unknown opcode: " + request.opcode);
+            }
+        } catch (Exception e) {
+            response = Response.error(e.getMessage() == null ? e.toString() : e.getMessage());
+        } finally {
+            payload.skipRemaining();
+        }
+        BinaryProtocol.writeResponse(out, response);
+    }
+
+    public static boolean isStreamCommand(String line) {
+        String command = line.split(" ", 2)[0].toUpperCase();
+        return command.equals("READSTREAM") || command.equals("WRITESTREAM");
+    }
+
+    // Text-mode streaming, thread-mode connections only. Every reply goes to out, raw file bytes to rawOut.
+    //   READSTREAM <file>           -> "OK: <length>", then exactly length raw bytes
+    //   WRITESTREAM <file> <length> -> "OK: send <length> bytes" (or ERROR, and nothing may be sent),
+    //                                  then the client sends the bytes and gets "OK: Content written"
+    public void processStream(String line, InputStream in, PrintWriter out, OutputStream rawOut,
+                              WritableByteChannel channel) throws IOException {
+        String[] parts = line.split(" ");
+        String command = parts[0].toUpperCase();
+
+        if (command.equals("READSTREAM")) {
+            if (parts.length < 2) {
+                out.println("ERROR: READSTREAM requires a filename");
+                return;
+            }
+            StreamingSink sink = new StreamingSink() {
+                @Override
+                void begin(int filesize) {
+                    out.println("OK: " + filesize);
+                    out.flush();
+                }
+
+                @Override
+                public void chunk(byte[] data, int offset, int length) throws IOException {
+                    rawOut.write(data, offset, length);
+                }
+            };
+            if (streamRead(parts[1], sink, channel) != null) {
+                out.println("ERROR: " + sink.error);
+            }
+            return;
+        }
+
+        if (parts.length < 3) {
+            out.println("ERROR: WRITESTREAM requires filename and length");
+            return;
+        }
+        long length;
+        try {
+            length = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            out.println("ERROR: invalid length " + parts[2]);
+            return;
+        }
+        if (length < 0 || length > getMaxPayload()) {
+            out.println("ERROR: file too large");
+            return;
+        }
+        if (fsm.getGeneration(parts[1]) < 0) {
+            out.println("ERROR: file " + parts[1] + " does not exist");
+            return;
+        }
+
+        // Go ahead: the client only sends the bytes after this line
+        out.println("OK: send " + length + " bytes");
+        out.flush();
+
+        PayloadInputStream payload = new PayloadInputStream(in, length);
+        try {
+            fsm.writeFile(parts[1], payload, (int) length);
+            out.println("OK: Content written");
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            out.println("ERROR: " + e.getMessage());
+        } finally {
+            payload.skipRemaining();
+        }
+    }
+
+    // Error message if the read failed before anything was sent, null once the whole file went out.
+    // A failure after the size was announced cannot be reported in-band, so it ends the connection.
+    private String streamRead(String filename, StreamingSink sink, WritableByteChannel channel) throws IOException {
+        try {
+            if (channel != null) {
+                fsm.transferFile(filename, sink, channel); // disk to socket without a heap copy
+            } else {
+                fsm.readFile(filename, sink);
+            }
+            return null;
+        } catch (Exception e) {
+            if (sink.started) {
+                throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+            }
+            sink.error = e.getMessage() == null ? e.toString() : e.getMessage();
+            return sink.error;
+        }
+    }
+
+    private abstract static class StreamingSink implements ChunkSink {
+        boolean started;
+        String error;
+
+        @Override
+        public void size(int filesize) throws IOException {
+            started = true;
+            begin(filesize);
+        }
+
+        abstract void begin(int filesize) throws IOException;
+    }
+
+    private String handleCreate(String[] parts) {
+        if (parts.length < 2) {
+            return "ERROR: CREATE requires a filename";
+        }
+
+        try {
+            fsm.createFile(parts[1]);
+            return "OK: File created";
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (Exception e) {
+            return "ERROR: Could not create file";
+        }
+    }
+
+    private String handleWrite(String[] parts) {
+        if (parts.length < 3) {
+            return "ERROR: WRITE requires filename and content";
+        }
+
+        try {
+            boolean success = fsm.writeFile(parts[1], parts[2]);
+            return success ? "OK: Content written" : "ERROR: Could not write to file";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    private String handleRead(String[] parts) {
+        if (parts.length < 2) {
+            return "ERROR: READ requires a filename";
+        }
+
+        try {
+            // Serve popular files from the read cache while their generation is unchanged
+            long generation = fsm.getGeneration(parts[1]);
+            String cached = readCache.get(parts[1], generation);
+            if (cached != null) {
+                return cached;
+            }
+
+            String content = fsm.readFile(parts[1]);
+            if (content == null) {
+                return "ERROR: Could not read file";
+            }
+
+            // Only cache what was read if no write happened in between
+            if (fsm.getGeneration(parts[1]) == generation) {
+                readCache.put(parts[1], generation, content);
+            }
+            return content;
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    // READRANGE <file> <offset> <length>: the bytes of that range, cut short at the end of the file
+    private String handleReadRange(String[] parts) {
+        String[] range = parts.length < 3 ? new String[0] : parts[2].split(" ");
+        if (range.length != 2) {
+            return "ERROR: READRANGE requires filename, offset and length";
+        }
+
+        try {
+            return new String(fsm.readFileBytes(parts[1], Integer.parseInt(range[0]), Integer.parseInt(range[1])));
+        } catch (NumberFormatException e) {
+            return "ERROR: offset and length must be numbers";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    // WRITEAT <file> <offset> <content>: overwrite from offset on, extending the file if needed
+    private String handleWriteAt(String[] parts) {
+        String[] rest = parts.length < 3 ? new String[0] : parts[2].split(" ", 2);
+        if (rest.length != 2) {
+            return "ERROR: WRITEAT requires filename, offset and content";
+        }
+
+        try {
+            fsm.writeFile(parts[1], Integer.parseInt(rest[0]), rest[1].getBytes());
+            return "OK: Content written";
+        } catch (NumberFormatException e) {
+            return "ERROR: offset must be a number";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    private String handleAppend(String[] parts) {
+        if (parts.length < 3) {
+            return "ERROR: APPEND requires filename and content";
+        }
+
+        try {
+            fsm.appendFile(parts[1], parts[2].getBytes());
+            return "OK: Content appended";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    private String handleDelete(String[] parts) {
+        if (parts.length < 2) {
+            return "ERROR: DELETE requires a filename";
+        }
+
+        try {
+            fsm.deleteFile(parts[1]);
+            return "OK: File deleted";
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (Exception e) {
+            return "ERROR: Could not delete file";
+        }
+    }
+
+    private String handleList(String[] parts) {
+        try {
+            String[] files = fsm.listFiles();
+
+            if (files == null || files.length == 0) {
+                return "No files";
+            }
+
+            return String.join(", ", files);
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ca.concordia.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// READ responses by filename, valid only while the file's generation is unchanged
+public class FileContentCache {
+
+    private static class Entry {
+        final long generation;
+        final String payload;
+        final long size;
+
+        Entry(long generation, String payload) {
+            this.generation = generation;
+            this.payload = payload;
+            this.size = 2L * payload.length() + 64; // chars plus rough object overhead
+        }
+    }
+
+    private final long budgetBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    private long usedBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public FileContentCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // Cached payload for this generation of the file, or null
+    public String get(String filename, long generation) {
+        if (budgetBytes <= 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Entry entry = entries.get(filename);
+            if (entry != null && entry.generation == generation) {
+                hits.increment();
+                return entry.payload;
+            }
+            if (entry != null) {
+                remove(filename);
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(String filename, long generation, String payload) {
+        if (generation < 0) {
+            return;
+        }
+        Entry entry = new Entry(generation, payload);
+        if (entry.size > budgetBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            remove(filename);
+            entries.put(filename, entry);
+            usedBytes += entry.size;
+
+            // Evict least recently read files until the budget is met
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (usedBytes > budgetBytes && eldest.hasNext()) {
+                usedBytes -= eldest.next().getValue().size;
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            long hitCount = hits.sum();
+            long total = hitCount + misses.sum();
+            return String.format("read cache %d files, %d/%d bytes, hits=%d misses=%d hit rate=%.1f%%",
+                    entries.size(), usedBytes, budgetBytes, hitCount, misses.sum(),
+                    total == 0 ? 0.0 : hitCount * 100.0 / total);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String filename) {
+        Entry old = entries.remove(filename);
+        if (old != null) {
+            usedBytes -= old.size;
+        }
+    }
+}
@@ -94,39 +94,149 @@
 package ca.concordia.server;
 
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemOptions;
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class FileServer {
 
+    private static final int SEND_BUFFER = 512 * 1024; // per client socket, see FileSystemManager.transferFile
+
     private final int port;
+    private final FileSystemManager fsManager;
+    private final CommandProcessor processor; // shared by all clients, along with its read cache
+    private final ServerOptions serverOptions;
 
     public FileServer(int port, String fileSystemName, int totalSize) throws IOException {
-        this.port = port;
         // Initialize the FileSystemManager singleton
-        FileSystemManager.getInstance(fileSystemName, totalSize);
+        this(port, FileSystemManager.getInstance(fileSystemName, totalSize), new ServerOptions());
+    }
+
+    public FileServer(int port, String fileSystemName, FileSystemOptions options) throws IOException {
+        this(port, fileSystemName, options, new ServerOptions());
+    }
+
+    public FileServer(int port, String fileSystemName, FileSystemOptions options, ServerOptions serverOptions)
+            throws IOException {
+        this(port, FileSystemManager.getInstance(fileSystemName, options), serverOptions);
+    }
+
+    private FileServer(int port, FileSystemManager fsManager, ServerOptions serverOptions) {
+        this.port = port;
+        this.fsManager = fsManager;
+        this.processor = new CommandProcessor(fsManager, new FileContentCache(serverOptions.getReadCacheBytes()));
+        this.serverOptions = serverOptions;
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // Changes still waiting for their flush are written out when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                fsManager.close();
+            } catch (IOException e) {
+                System.err.println("Could not flush the file system: " + e.getMessage());
+            }
+        }));
+
+        if (serverOptions.getMode() == ServerMode.NIO) {
+            new NioFileServer(port, processor, serverOptions).start();
+            return;
+        }
+
+        Executor connections = connectionExecutor(serverOptions);
+        // A connection holds its thread until it closes, so platform threads admit no more than there are
+        // threads; the rest get ERROR: server busy straight away instead of waiting for someone to leave
+        int maxConnections = connections instanceof ThreadPoolExecutor
+                ? Math.min(serverOptions.getMaxConnections(), serverOptions.getHandlerThreads())
+                : serverOptions.getMaxConnections();
+        Semaphore admitted = new Semaphore(maxConnections);
+        // Accepted through a channel so each socket has one, which lets READs use FileChannel.transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             System.out.println("Server listening on port " + port);
 
             while (true) {
-                Socket clientSocket = serverSocket.accept();
+                Socket clientSocket = serverChannel.accept().socket();
+                // A fixed size keeps the kernel from growing the buffer past what transferFile copies at the end
+                try {
+                    clientSocket.setSendBufferSize(SEND_BUFFER);
+                } catch (SocketException e) {
+                    System.err.println("Could not size the send buffer of " + clientSocket + ": " + e.getMessage());
+                }
+                if (!admitted.tryAcquire()) {
+                    rejectBusy(clientSocket);
+                    continue;
+                }
                 System.out.println("Handling Client: " + clientSocket);
 
                 // Use ClientHandler instead of inline handling
-                ClientHandler handler = new ClientHandler(clientSocket);
-                new Thread(handler).start();
+                ClientHandler handler = new ClientHandler(clientSocket, processor, serverOptions.getMaxInFlight());
+                try {
+                    connections.execute(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            admitted.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // No thread could be started for it
+                    admitted.release();
+                    rejectBusy(clientSocket);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Runs each ClientHandler on a bounded pool of platform threads, or its own virtual thread in VIRTUAL mode
+    private static Executor connectionExecutor(ServerOptions options) {
+        if (options.getMode() == ServerMode.VIRTUAL) {
+            // Looked up at runtime: virtual threads are a preview API on Java 19 and absent before it
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                System.err.println("Virtual threads unavailable (Java 21+, or 19/20 with --enable-preview),"
+                        + " using platform threads");
+            }
+        }
+        // Nothing is queued: the admission semaphore already keeps connections to handlerThreads, and the pool
+        // may briefly run a few more while threads of closed connections return to it
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(options.getHandlerThreads(), Integer.MAX_VALUE,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Refuse a connection cheaply instead of letting it wait on an overloaded server
+    private static void rejectBusy(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(CommandProcessor.BUSY);
+        } catch (IOException e) {
+            // client already gone
+        }
+    }
+
     public static void main(String[] args) throws IOException {
-        FileServer server = new FileServer(12345, "disk.dat", 1280);
+        // e.g. -Dfs.maxFiles=50000 -Dfs.maxBlocks=1000000 -Dfs.blockSize=4096 -Dfs.storage=mapped
+        // -Dfs.durability=async|batched|sync -Dfs.flushIntervalMs=1000 -Dfs.batchDelayMs=5 -Dfs.journal=false
+        // -Dfs.lazyTrim=true -Dfs.scrubIntervalMs=10
+        // -Dserver.mode=virtual|nio -Dserver.ioThreads=2 -Dserver.workerThreads=8
+        // -Dserver.handlerThreads=256 -Dserver.queueLimit=256 -Dserver.maxConnections=4096 -Dserver.maxInFlight=32
+        FileServer server = new FileServer(12345, "disk.dat",
+                FileSystemOptions.fromSystemProperties(), ServerOptions.fromSystemProperties());
         server.start();
     }
 }
@@ -0,0 +1,400 @@
+package ca.concordia.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Selector based server: a few I/O threads own every socket, commands run on a small worker pool
+public class NioFileServer {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+    private final int port;
+    private final CommandProcessor processor;
+    private final ServerOptions options;
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    // One unit of work for a connection's worker: a command, a whole BATCH, or the end of its input
+    private static final class Request {
+        static final Request EXIT = new Request(null, null);
+
+        final String line;        // a single command, null otherwise
+        final List<String> batch; // header and operation lines of a BATCH, null otherwise
+
+        private Request(String line, List<String> batch) {
+            this.line = line;
+            this.batch = batch;
+        }
+
+        static Request command(String line) {
+            return new Request(line, null);
+        }
+
+        static Request batch(List<String> batch) {
+            return new Request(null, batch);
+        }
+    }
+
+    public NioFileServer(int port, CommandProcessor processor, ServerOptions options) {
+        this.port = port;
+        this.processor = processor;
+        this.options = options;
+    }
+
+    public void start() {
+        // Bounded queue: once every worker is busy and the queue is full, commands are refused with BUSY
+        ExecutorService workers = new ThreadPoolExecutor(options.getWorkerThreads(), options.getWorkerThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(options.getQueueLimit()));
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+
+            IoLoop[] loops = new IoLoop[options.getIoThreads()];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(workers);
+                Thread thread = new Thread(loops[i], "nio-io-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            System.out.println("Server listening on port " + port + " (nio, " + loops.length
+                    + " I/O threads, " + options.getWorkerThreads() + " workers)");
+
+            // Accepting stays blocking, each new connection is handed to the I/O threads in turn
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                if (openConnections.incrementAndGet() > options.getMaxConnections()) {
+                    openConnections.decrementAndGet();
+                    rejectBusy(channel);
+                    continue;
+                }
+                System.out.println("Handling Client: " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private class IoLoop implements Runnable {
+
+        private final Selector selector;
+        private final ExecutorService workers;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+
+        IoLoop(ExecutorService workers) throws IOException {
+            this.selector = Selector.open();
+            this.workers = workers;
+        }
+
+        // Called from the accept thread; the selector is only touched by its own thread
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        // Called from worker threads once a connection has output waiting
+        void requestWrite(Connection connection) {
+            writable.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Selector failed: " + e.getMessage());
+                    return;
+                }
+
+                SocketChannel channel;
+                while ((channel = registrations.poll()) != null) {
+                    try {
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException e) {
+                        System.err.println("Error registering client: " + e.getMessage());
+                        closeQuietly(channel);
+                        openConnections.decrementAndGet();
+                    }
+                }
+
+                Connection pending;
+                while ((pending = writable.poll()) != null) {
+                    pending.write();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private SelectionKey key;
+
+        // I/O thread only
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        private boolean inputDone;
+        private int inFlight; // commands read whose response has not been written back yet
+        private List<String> batch; // header and lines of a BATCH still being read, null outside a batch
+        private int batchRemaining; // lines of the batch still to come
+        private boolean closed;
+
+        // Commands run one at a time per connection so responses keep their order
+        private final Queue<Request> commands = new ArrayDeque<>();
+        private boolean running;
+
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private volatile boolean closeAfterFlush;
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void read() {
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            } catch (IOException e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                close();
+                return;
+            }
+            if (count < 0) {
+                // Client went away; whatever it already sent still gets answered before closing
+                String last = lineBuffer.toString(Charset.defaultCharset()).trim();
+                if (batch == null && !last.isEmpty() && !last.equalsIgnoreCase("exit")) {
+                    inFlight++;
+                    submit(Request.command(last));
+                }
+                inputDone = true;
+                submit(Request.EXIT);
+            }
+            processInput();
+        }
+
+        // Frame buffered input into commands until the in-flight limit is reached; the rest waits in readBuffer
+        private void processInput() {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !inputDone && inFlight < options.getMaxInFlight()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    String line = lineBuffer.toString(Charset.defaultCharset()).trim();
+                    lineBuffer.reset();
+                    if (batch != null) {
+                        // A refused batch keeps only its header, its lines are dropped as they arrive
+                        if (CommandProcessor.acceptsBatch(CommandProcessor.batchLength(batch.get(0)))) {
+                            batch.add(line);
+                        }
+                        if (--batchRemaining == 0) {
+                            submitBatch();
+                        }
+                    } else if (line.equalsIgnoreCase("exit")) {
+                        inputDone = true;
+                        submit(Request.EXIT);
+                    } else if (CommandProcessor.batchLength(line) >= 0) {
+                        batchRemaining = CommandProcessor.batchLength(line);
+                        batch = new ArrayList<>();
+                        batch.add(line);
+                        if (batchRemaining == 0) {
+                            submitBatch();
+                        }
+                    } else {
+                        inFlight++;
+                        submit(Request.command(line));
+                    }
+                } else {
+                    lineBuffer.write(b);
+                }
+            }
+            readBuffer.compact();
+            updateInterest(false);
+        }
+
+        private void submitBatch() {
+            inFlight++;
+            submit(Request.batch(batch));
+            batch = null;
+        }
+
+        // Stop reading the socket while too many commands are outstanding, so a flooding client is
+        // pushed back through TCP flow control instead of queueing without limit
+        private void updateInterest(boolean writePending) {
+            if (closed) {
+                return;
+            }
+            int ops = writePending ? SelectionKey.OP_WRITE : 0;
+            if (!inputDone && inFlight < options.getMaxInFlight()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        // Queue a command and start a worker for this connection unless one is already draining it
+        private void submit(Request request) {
+            synchronized (this) {
+                commands.add(request);
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            try {
+                loop.workers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                rejectQueued();
+            }
+        }
+
+        // Every worker is busy and the work queue is full: answer what is queued without running it
+        private void rejectQueued() {
+            synchronized (this) {
+                Request request;
+                while ((request = commands.poll()) != null) {
+                    if (request == Request.EXIT) {
+                        closeAfterFlush = true;
+                    } else {
+                        output.add(encode(CommandProcessor.BUSY));
+                    }
+                }
+                running = false;
+            }
+            loop.requestWrite(this);
+        }
+
+        private void drain() {
+            while (true) {
+                Request request;
+                synchronized (this) {
+                    request = commands.poll();
+                    if (request == null) {
+                        running = false;
+                        return;
+                    }
+                }
+
+                if (request == Request.EXIT) {
+                    closeAfterFlush = true;
+                } else if (request.batch != null) {
+                    List<String> lines = request.batch;
+                    int count = CommandProcessor.batchLength(lines.get(0));
+                    output.add(encode(CommandProcessor.acceptsBatch(count)
+                            ? processor.processBatch(lines.subList(1, lines.size())) : CommandProcessor.BATCH_REFUSED));
+                } else {
+                    output.add(encode(processor.process(request.line)));
+                }
+                loop.requestWrite(this);
+            }
+        }
+
+        // I/O thread only
+        void write() {
+            if (closed) {
+                return;
+            }
+            boolean writePending = false;
+            try {
+                ByteBuffer buffer;
+                while ((buffer = output.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        // Socket buffer is full, wait until the selector says it drained
+                        writePending = true;
+                        break;
+                    }
+                    output.poll();
+                    inFlight--;
+                }
+            } catch (IOException e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                close();
+                return;
+            }
+
+            if (closeAfterFlush && !writePending && output.isEmpty()) {
+                close();
+            } else {
+                if (readBuffer.position() > 0 && inFlight < options.getMaxInFlight()) {
+                    processInput(); // resume commands that were held back by the in-flight limit
+                }
+                updateInterest(writePending);
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            openConnections.decrementAndGet();
+        }
+    }
+
+    // Over the connection limit: answer once while the channel is still blocking, then hang up
+    private static void rejectBusy(SocketChannel channel) {
+        try {
+            channel.write(encode(CommandProcessor.BUSY));
+        } catch (IOException e) {
+            // client already gone
+        }
+        closeQuietly(channel);
+    }
+
+    private static ByteBuffer encode(String response) {
+        byte[] bytes = response.getBytes(Charset.defaultCharset());
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + LINE_SEPARATOR.length);
+        buffer.put(bytes).put(LINE_SEPARATOR).flip();
+        return buffer;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
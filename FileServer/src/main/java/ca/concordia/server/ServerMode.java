@@ -0,0 +1,7 @@
+package ca.concordia.server;
+
+public enum ServerMode {
+    THREAD,  // one blocking platform thread per client connection
+    VIRTUAL, // one blocking virtual thread per client connection
+    NIO      // a few selector threads multiplex all connections, commands run on a worker pool
+}
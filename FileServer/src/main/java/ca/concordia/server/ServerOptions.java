@@ -0,0 +1,110 @@
+package ca.concordia.server;
+
+public class ServerOptions {
+
+    private long readCacheBytes = 8L * 1024 * 1024; // budget for cached READ responses, 0 disables it
+    private ServerMode mode = ServerMode.THREAD;
+    private int ioThreads = 1; // selector threads in NIO mode
+    private int workerThreads = Runtime.getRuntime().availableProcessors(); // command threads in NIO mode
+    private int handlerThreads = 256;     // connection threads in THREAD mode
+    private int queueLimit = 256;         // NIO mode: commands waiting for a worker thread
+    private int maxConnections = 4096;    // more get ERROR: server busy; THREAD mode: at most handlerThreads
+    private int maxInFlight = 32;         // unanswered commands per connection before the server stops reading it
+
+    // Options from -Dserver.* system properties, falling back to the defaults
+    public static ServerOptions fromSystemProperties() {
+        ServerOptions options = new ServerOptions();
+        options.setReadCacheBytes(Long.getLong("server.readCacheBytes", options.getReadCacheBytes()));
+        options.setMode(ServerMode.valueOf(
+                System.getProperty("server.mode", options.getMode().name()).toUpperCase()));
+        options.setIoThreads(Integer.getInteger("server.ioThreads", options.getIoThreads()));
+        options.setWorkerThreads(Integer.getInteger("server.workerThreads", options.getWorkerThreads()));
+        options.setHandlerThreads(Integer.getInteger("server.handlerThreads", options.getHandlerThreads()));
+        options.setQueueLimit(Integer.getInteger("server.queueLimit", options.getQueueLimit()));
+        options.setMaxConnections(Integer.getInteger("server.maxConnections", options.getMaxConnections()));
+        options.setMaxInFlight(Integer.getInteger("server.maxInFlight", options.getMaxInFlight()));
+        return options;
+    }
+
+    public long getReadCacheBytes() {
+        return readCacheBytes;
+    }
+
+    public void setReadCacheBytes(long readCacheBytes) {
+        this.readCacheBytes = readCacheBytes;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public void setMode(ServerMode mode) {
+        this.mode = mode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("Server needs at least one I/O thread.");
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("Server needs at least one worker thread.");
+        }
+        this.workerThreads = workerThreads;
+    }
+
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    public void setHandlerThreads(int handlerThreads) {
+        if (handlerThreads <= 0) {
+            throw new IllegalArgumentException("Server needs at least one handler thread.");
+        }
+        this.handlerThreads = handlerThreads;
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    public void setQueueLimit(int queueLimit) {
+        if (queueLimit <= 0) {
+            throw new IllegalArgumentException("Queue limit must be at least 1.");
+        }
+        this.queueLimit = queueLimit;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Server must allow at least one connection.");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Connections must allow at least one command in flight.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+}